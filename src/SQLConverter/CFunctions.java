@@ -69,4 +69,78 @@ public class CFunctions {
                 }
                 """;
     }
+
+    /**
+     * Name of the variant of a function for an integer type, e.g. embedDBAbsI32 for int32_t
+     */
+    public static String getName(String function, String dataType) {
+        return function + (dataType.startsWith("u") ? "U" : "I") + (dataType.contains("64") ? "64" : "32");
+    }
+
+    public static String abs(String dataType) {
+        return """
+                %2$s %1$s(%2$s x) {
+                    return x < 0 ? -x : x;
+                }
+                """.formatted(getName("embedDBAbs", dataType), dataType);
+    }
+
+    /**
+     * floor(x / d) for a positive d without converting to double. Unsigned division already rounds down, so this is only needed for signed types
+     */
+    public static String floorDiv(String dataType) {
+        return """
+                %2$s %1$s(%2$s x, %2$s d) {
+                    %2$s q = x / d;
+                    return x %% d < 0 ? q - 1 : q;
+                }
+                """.formatted(getName("embedDBFloorDiv", dataType), dataType);
+    }
+
+    /**
+     * ceil(x / d) for a positive d without converting to double
+     */
+    public static String ceilDiv(String dataType) {
+        return """
+                %2$s %1$s(%2$s x, %2$s d) {
+                    %2$s q = x / d;
+                    return x %% d > 0 ? q + 1 : q;
+                }
+                """.formatted(getName("embedDBCeilDiv", dataType), dataType);
+    }
+
+    /**
+     * round(x / d) for a positive d, rounding halves up like embedDBRound, without converting to double
+     */
+    public static String roundDiv(String dataType) {
+        return """
+                %2$s %1$s(%2$s x, %2$s d) {
+                    %2$s q = x / d;
+                    %2$s r = x %% d;
+                    if (r < 0) {
+                        q--;
+                        r += d;
+                    }
+                    return r >= d - r ? q + 1 : q;
+                }
+                """.formatted(getName("embedDBRoundDiv", dataType), dataType);
+    }
+
+    /**
+     * Writes a difference of two values as a zigzag varint, so small differences of either sign take one byte, and returns its length
+     */
+    public static String putDelta() {
+        return """
+                uint8_t embedDBPutDelta(uint8_t* bytes, uint64_t delta) {
+                    uint64_t zigzag = (delta << 1) ^ (0 - (delta >> 63));
+                    uint8_t length = 0;
+                    while (zigzag >= 0x80) {
+                        bytes[length++] = (uint8_t)zigzag | 0x80;
+                        zigzag >>= 7;
+                    }
+                    bytes[length++] = (uint8_t)zigzag;
+                    return length;
+                }
+                """;
+    }
 }
@@ -0,0 +1,238 @@
+/**
+ * @file		Footprint.java
+ * @author		EmbedDB Team
+ * @brief		Source code for EmbedDB-SQL
+ * @copyright	Copyright 2023
+ * 			    EmbedDB Team
+ * @par Redistribution and use in source and binary forms, with or without
+ * 	modification, are permitted provided that the following conditions are met:
+ *
+ * @par 1.Redistributions of source code must retain the above copyright notice,
+ * 	this list of conditions and the following disclaimer.
+ *
+ * @par 2.Redistributions in binary form must reproduce the above copyright notice,
+ * 	this list of conditions and the following disclaimer in the documentation
+ * 	and/or other materials provided with the distribution.
+ *
+ * @par 3.Neither the name of the copyright holder nor the names of its contributors
+ * 	may be used to endorse or promote products derived from this software without
+ * 	specific prior written permission.
+ *
+ * @par THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * 	AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * 	IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * 	ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * 	LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * 	CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * 	SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * 	INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * 	CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * 	ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * 	POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package SQLConverter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Memory a generated query needs on a 32-bit microcontroller, with the bytes of each buffer and piece of state it keeps,
+ * and an estimate of the flash taken by the generated C functions.
+ * <p>
+ * The global variables and the local variables of each function are sized from their declarations in the generated
+ * code, counting the locals of a function as if they were all on the stack at once. Memory the EmbedDB operators and
+ * the setup code allocate is added as the operator tree is built, as is the page of the embedDBState that the query
+ * reads through. The other buffers of the embedDBState are shared with the rest of the program and are not counted.
+ */
+public class Footprint {
+    /**
+     * Size of a pointer, and the largest alignment of a field of an EmbedDB struct
+     */
+    static final int POINTER_SIZE = 4;
+    /**
+     * embedDBIterator: four bound pointers, the next data page and record, and the query bitmap pointer
+     */
+    static final int ITERATOR_SIZE = 7 * POINTER_SIZE;
+    /**
+     * embedDBOperator: the input, state, schema and record buffer pointers, and the init, next and close functions
+     */
+    static final int OPERATOR_SIZE = 7 * POINTER_SIZE;
+    /**
+     * embedDBSchema: the number of columns, and pointers to the column sizes and signedness
+     */
+    static final int SCHEMA_SIZE = 3 * POINTER_SIZE;
+    /**
+     * embedDBAggregateFunc: the state pointer, the reset, add and compute functions, and the column size and number
+     */
+    static final int AGGREGATE_FUNC_SIZE = 5 * POINTER_SIZE;
+    /**
+     * Rough size of the machine code of one C statement, from Thumb-2 code where a statement is two to three instructions
+     */
+    static final int STATEMENT_CODE_SIZE = 8;
+
+    private static final Pattern DECLARATION = Pattern.compile("(?:static )?(\\w+\\*?) (\\w+)((?:\\[\\d*])*)(?: = (.+))?;");
+
+    public record Item(String name, int bytes) {
+    }
+
+    private final ArrayList<Item> items = new ArrayList<>();
+    /**
+     * Size and alignment of each struct declared by the generated code
+     */
+    private final Map<String, int[]> structs = new HashMap<>();
+    private int codeBytes;
+    private boolean isComplete;
+
+    public List<Item> getItems() {
+        return Collections.unmodifiableList(items);
+    }
+
+    /**
+     * Bytes of RAM the query needs
+     */
+    public int getRamBytes() {
+        int bytes = 0;
+        for (Item item : items)
+            bytes += item.bytes;
+        return bytes;
+    }
+
+    /**
+     * Estimated bytes of flash for the generated code
+     */
+    public int getCodeBytes() {
+        return codeBytes;
+    }
+
+    boolean isComplete() {
+        return isComplete;
+    }
+
+    void add(String name, int bytes) {
+        if (bytes > 0) items.add(new Item(name, bytes));
+    }
+
+    /**
+     * Adds an embedDBOperator with its state and a copy of its schema, and a record buffer unless it passes on the buffer
+     * of its input
+     */
+    void addOperator(String name, int stateBytes, int numCols, int recordSize) {
+        add(name, OPERATOR_SIZE + stateBytes + SCHEMA_SIZE + 2 * numCols + recordSize);
+    }
+
+    /**
+     * Ends the footprint with the generated code, adding its variables and estimating its flash from its statements and
+     * functions
+     */
+    void complete(String code) {
+        isComplete = true;
+        String function = null;
+        ArrayList<String> structFields = null;
+        int localBytes = 0;
+        for (String line : code.split("\n")) {
+            String trimmed = line.strip();
+            if (structFields != null) {
+                if (line.startsWith("}")) {
+                    structs.put(trimmed.substring(1, trimmed.length() - 1).strip(), getLayout(structFields));
+                    structFields = null;
+                } else {
+                    structFields.add(trimmed);
+                }
+            } else if (line.startsWith("typedef struct")) {
+                structFields = new ArrayList<>();
+            } else if (line.startsWith("}")) {
+                if (function != null) add("locals of " + function, localBytes);
+                function = null;
+            } else if (!line.startsWith(" ") && line.endsWith(") {")) {
+                // Function prologue and epilogue
+                String header = line.substring(0, line.indexOf('('));
+                function = header.substring(header.lastIndexOf(' ') + 1);
+                localBytes = 0;
+                codeBytes += 2 * STATEMENT_CODE_SIZE;
+            } else {
+                if (function != null && (trimmed.endsWith(";") || trimmed.endsWith("{"))) codeBytes += STATEMENT_CODE_SIZE;
+                int[] layout = getDeclarationLayout(trimmed);
+                if (layout == null) continue;
+                if (function == null) {
+                    Matcher matcher = DECLARATION.matcher(trimmed);
+                    matcher.matches();
+                    add(matcher.group(2), layout[0]);
+                } else {
+                    localBytes += layout[0];
+                }
+            }
+        }
+    }
+
+    /**
+     * Size of declarations laid out as the fields of a struct, with each field aligned to its type and the end padded to
+     * the largest alignment, and that alignment
+     */
+    private int[] getLayout(List<String> fields) {
+        int size = 0, alignment = 1;
+        for (String field : fields) {
+            int[] layout = getDeclarationLayout(field);
+            if (layout == null) continue;
+            size = (size + layout[1] - 1) / layout[1] * layout[1] + layout[0];
+            alignment = Math.max(alignment, layout[1]);
+        }
+        return new int[]{(size + alignment - 1) / alignment * alignment, alignment};
+    }
+
+    /**
+     * Size and alignment of a C declaration such as "int32_t agg0 = 0;" or "int8_t record[12];", or null if it is not a
+     * declaration of a known type
+     */
+    private int[] getDeclarationLayout(String declaration) {
+        Matcher matcher = DECLARATION.matcher(declaration);
+        if (!matcher.matches()) return null;
+        int[] type = getTypeLayout(matcher.group(1));
+        if (type == null) return null;
+        int count = 1;
+        for (String dimension : matcher.group(3).split("]")) {
+            if (dimension.isEmpty()) continue;
+            if (dimension.length() > 1) {
+                count *= Integer.parseInt(dimension.substring(1));
+            } else if (matcher.group(4) != null) {
+                // The length of the array comes from its initializer
+                count *= matcher.group(4).split(",").length;
+            }
+        }
+        return new int[]{type[0] * count, type[1]};
+    }
+
+    private int[] getTypeLayout(String type) {
+        if (type.endsWith("*")) return new int[]{POINTER_SIZE, POINTER_SIZE};
+        if (structs.containsKey(type)) return structs.get(type);
+        int size = switch (type) {
+            case "int8_t", "uint8_t" -> 1;
+            case "int16_t", "uint16_t" -> 2;
+            case "int32_t", "uint32_t", "float" -> 4;
+            case "int64_t", "uint64_t", "double" -> 8;
+            case "embedDBIterator" -> ITERATOR_SIZE;
+            case "embedDBOperator" -> OPERATOR_SIZE;
+            case "embedDBAggregateFunc" -> AGGREGATE_FUNC_SIZE;
+            default -> 0;
+        };
+        return size == 0 ? null : new int[]{size, type.startsWith("embedDB") ? POINTER_SIZE : size};
+    }
+
+    /**
+     * One line per item with its bytes, then the totals
+     */
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        for (Item item : items)
+            report.append(item.name).append(": ").append(item.bytes).append(" bytes\n");
+        report.append("RAM: ").append(getRamBytes()).append(" bytes\n");
+        report.append("Code: about ").append(codeBytes).append(" bytes\n");
+        return report.toString();
+    }
+}
@@ -44,21 +44,41 @@ import org.hsqldb.types.Type;
 import java.io.Closeable;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Path;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
 @SuppressWarnings({"SqlSourceToSinkFlow", "unchecked"})
 public class SQLConverter implements Closeable {
+    /**
+     * Number of converters created, so each gets its own in-memory database
+     */
+    private static final AtomicInteger databaseCount = new AtomicInteger();
     private final JDBCConnection conn;
     private final Statement stmt;
+    private CodeGenMode codeGenMode = CodeGenMode.OPERATOR;
+    private AllocationMode allocationMode = AllocationMode.HEAP;
+    private OutputMode outputMode = OutputMode.CSV;
+    private int resultRingRows = 16;
+    private int ramBudget;
+    private Footprint footprint;
+    private final Map<String, TableStatistics> statistics = new HashMap<>();
 
     public SQLConverter() throws SQLException {
-        conn = (JDBCConnection) DriverManager.getConnection("jdbc:hsqldb:mem:test", "SA", "");
+        conn = (JDBCConnection) DriverManager.getConnection("jdbc:hsqldb:mem:test" + databaseCount.getAndIncrement(), "SA", "");
         stmt = conn.createStatement();
         stmt.execute("DROP SCHEMA PUBLIC CASCADE");
+
+        // Window functions, so HSQLDB parses and types them. The converter generates its own code for them, and groups
+        // by SLIDING_BUCKET as windows of several panes rather than by the pane the body returns
+        stmt.execute("CREATE FUNCTION TIME_BUCKET(ts BIGINT, width BIGINT) RETURNS BIGINT RETURN ts - MOD(ts, width)");
+        stmt.execute("CREATE FUNCTION SLIDING_BUCKET(ts BIGINT, size BIGINT, slide BIGINT) RETURNS BIGINT RETURN ts - MOD(ts, slide)");
     }
 
     public SQLConverter(String... ddl) throws SQLException {
@@ -80,7 +100,190 @@ public class SQLConverter implements Closeable {
         stmt.executeUpdate(ddl);
     }
 
+    /**
+     * Style of C code produced by {@link #toCCode(String)}
+     */
+    public enum CodeGenMode {
+        /**
+         * Chain of embedDBOperators built with the EmbedDB advanced query functions
+         */
+        OPERATOR,
+        /**
+         * A single specialized loop over embedDBNext with predicates and aggregates inlined at fixed offsets
+         */
+        FUSED,
+        /**
+         * State kept in memory and updated by onInsert with each record as it is inserted, so printResult outputs the
+         * result without reading the table. A group by an expression that increases with the key, such as a time
+         * window, is output as soon as a record starts the next one.
+         */
+        CONTINUOUS
+    }
+
+    public CodeGenMode getCodeGenMode() {
+        return codeGenMode;
+    }
+
+    public void setCodeGenMode(CodeGenMode codeGenMode) {
+        this.codeGenMode = Objects.requireNonNull(codeGenMode);
+    }
+
+    /**
+     * Where the generated code keeps the values it owns (iterator, iterator bounds, selection values, aggregate functions)
+     */
+    public enum AllocationMode {
+        /**
+         * Values are malloc'd during setup and freed through the allocatedValues array
+         */
+        HEAP,
+        /**
+         * Values are members of an embedDBQueryStorage struct with static storage duration, so setup does not allocate.
+         * Storage is passed into createOperator, so a caller may also provide its own.
+         */
+        STATIC
+    }
+
+    public AllocationMode getAllocationMode() {
+        return allocationMode;
+    }
+
+    public void setAllocationMode(AllocationMode allocationMode) {
+        this.allocationMode = Objects.requireNonNull(allocationMode);
+    }
+
+    /**
+     * How the generated code outputs the rows of the result
+     */
+    public enum OutputMode {
+        /**
+         * Each row is printed with printf as comma separated values, and an empty line ends the result
+         */
+        CSV,
+        /**
+         * Each row is packed into a record of the output columns and passed to onResultRow, which the caller defines.
+         * onResultRow gets NULL at the end of the result
+         */
+        CALLBACK,
+        /**
+         * Rows are packed into records in the resultRing array, which holds the last {@link #setResultRingRows} rows
+         * starting at resultRingStart, with the oldest overwritten once it is full
+         */
+        RING_BUFFER,
+        /**
+         * Each row is passed as bytes to onResultBytes, which the caller defines. An integer column is written as a
+         * zigzag varint of its difference from the previous row, and a float column as it is. onResultBytes gets no
+         * bytes at the end of the result, and the next result starts again from 0
+         */
+        DELTA
+    }
+
+    public OutputMode getOutputMode() {
+        return outputMode;
+    }
+
+    public void setOutputMode(OutputMode outputMode) {
+        this.outputMode = Objects.requireNonNull(outputMode);
+    }
+
+    public int getResultRingRows() {
+        return resultRingRows;
+    }
+
+    /**
+     * Number of rows the ring buffer of {@link OutputMode#RING_BUFFER} holds
+     */
+    public void setResultRingRows(int resultRingRows) {
+        if (resultRingRows <= 0) throw new IllegalArgumentException("The result ring must hold at least one row");
+        this.resultRingRows = resultRingRows;
+    }
+
+    public int getRamBudget() {
+        return ramBudget;
+    }
+
+    /**
+     * Bytes of RAM a generated query may use, or 0 for no limit. toCCode returns an error for a query over the budget,
+     * after trying fused code for an operator query that is over it, as fused code does not build an operator tree
+     */
+    public void setRamBudget(int ramBudget) {
+        if (ramBudget < 0) throw new IllegalArgumentException("The RAM budget cannot be negative");
+        this.ramBudget = ramBudget;
+    }
+
+    /**
+     * Footprint of the code generated by the last call to toCCode, or null if it returned an error other than being
+     * over the RAM budget
+     */
+    public Footprint getFootprint() {
+        return footprint;
+    }
+
+    /**
+     * Loads table statistics from a JSON file, see {@link TableStatistics} for the format.
+     * Statistics replace any that were previously set for the same table.
+     */
+    public void loadStatistics(Path path) throws IOException {
+        statistics.putAll(TableStatistics.load(path));
+    }
+
+    public void setStatistics(String tableName, TableStatistics tableStatistics) {
+        statistics.put(tableName.toUpperCase(), tableStatistics);
+    }
+
     public String toCCode(String query) throws RuntimeException {
+        return toCCode(compileQuery(query));
+    }
+
+    /**
+     * Converts queries on the same table into one execQueries function that reads the table once. Every record is
+     * checked against the selections of each query and added to its aggregates, and each output row starts with the
+     * name of its query, query0 for the first. The queries always get fused code, as each operator tree would read the
+     * table with its own iterator.
+     */
+    public String toCCode(List<String> queries) throws RuntimeException {
+        footprint = new Footprint();
+        return checkRamBudget(generateCode(queries));
+    }
+
+    private String generateCode(List<String> queries) {
+        OrderedHashMap<String, String> cFunctions = new OrderedHashMap<>();
+        ArrayList<QueryPlan> plans = new ArrayList<>();
+        Table table = null;
+        for (int i = 0; i < queries.size(); i++) {
+            QuerySpecification query = compileQuery(queries.get(i));
+            List<RangeVariable> rangeVariables = getTableRangeVariables(query);
+            if (rangeVariables.size() != 1) {
+                return "System cannot handle queries involving more than one table";
+            }
+            if (table == null) {
+                table = rangeVariables.get(0).getTable();
+            } else if (rangeVariables.get(0).getTable() != table) {
+                return "Queries that share a scan must read the same table";
+            }
+
+            QueryPlan plan = planQuery(query, cFunctions);
+            if (!plan.success) return "query" + i + ": " + plan.errorMsg;
+            if (plan.isDescending) return "query" + i + ": ORDER BY DESC cannot share a scan";
+            plan.queryName = "query" + i;
+            plan.rowLabel = plan.queryName;
+            if (plan.isEmpty) continue;
+            putOutputFunctions(plan, cFunctions);
+            putPredicateFunction(plan, cFunctions);
+            plans.add(plan);
+        }
+        if (!plans.isEmpty()) addPageFootprint(table);
+        return joinCode(cFunctions, new StringBuilder(), getSharedScanCode(plans, cFunctions));
+    }
+
+    /**
+     * Adds the page of the embedDBState that the generated code reads the table through
+     */
+    private void addPageFootprint(Table table) {
+        TableStatistics tableStatistics = statistics.get(table.getName().name);
+        footprint.add("page buffer", tableStatistics == null ? new TableStatistics().pageSize : tableStatistics.pageSize);
+    }
+
+    private QuerySpecification compileQuery(String query) {
         JDBCStatement jStmt = (JDBCStatement) stmt;
         HsqlArrayList<StatementCommand> compiledStatements;
         try {
@@ -100,42 +303,129 @@ public class SQLConverter implements Closeable {
             throw new RuntimeException("Query did not compile correctly");
         }
 
-        // Get C code
         if (sq.queryExpression instanceof QuerySpecification) {
-            return toCCode((QuerySpecification) sq.queryExpression);
+            return (QuerySpecification) sq.queryExpression;
         } else {
             throw new RuntimeException("Unknown query format error");
         }
     }
 
-    @SuppressWarnings({"MismatchedQueryAndUpdateOfStringBuilder"})
     private String toCCode(QuerySpecification query) {
-        StringBuilder operatorCode;
-        StringBuilder queryCode = new StringBuilder();
-        OrderedHashMap<String, String> cFunctions = new OrderedHashMap<>();
+        footprint = new Footprint();
+        String code = generateCode(query);
+        if (footprint.isComplete() && ramBudget > 0 && footprint.getRamBytes() > ramBudget && codeGenMode == CodeGenMode.OPERATOR) {
+            // Fused code reads the records without an operator tree, so it may fit the budget when the operators do not
+            Footprint operatorFootprint = footprint;
+            footprint = new Footprint();
+            String fusedCode;
+            codeGenMode = CodeGenMode.FUSED;
+            try {
+                fusedCode = generateCode(query);
+            } finally {
+                codeGenMode = CodeGenMode.OPERATOR;
+            }
+            if (footprint.isComplete()) {
+                code = fusedCode;
+            } else {
+                footprint = operatorFootprint;
+            }
+        }
+        return checkRamBudget(code);
+    }
 
-        String indent = "";
+    /**
+     * Returns the generated code, or an error if its footprint is over the RAM budget
+     */
+    private String checkRamBudget(String code) {
+        if (!footprint.isComplete()) {
+            footprint = null;
+            return code;
+        }
+        if (ramBudget > 0 && footprint.getRamBytes() > ramBudget) {
+            return "The query needs " + footprint.getRamBytes() + " bytes of RAM, more than the budget of " + ramBudget + " bytes";
+        }
+        return code;
+    }
+
+    private String generateCode(QuerySpecification query) {
+        OrderedHashMap<String, String> cFunctions = new OrderedHashMap<>();
 
-        if (query.getRangeVariables().length != 1) {
+        if (getTableRangeVariables(query).size() != 1) {
             return "System cannot handle queries involving more than one table";
         }
 
-        OperatorReturn r = getOperatorCode(query, cFunctions);
+        QueryPlan plan = planQuery(query, cFunctions);
+        if (!plan.success) return plan.errorMsg;
+
+        // Records are given to the continuous code one at a time, so it never reads the table
+        if (codeGenMode == CodeGenMode.CONTINUOUS) {
+            if (plan.limit >= 0) return "LIMIT is not supported by continuous queries";
+            if (plan.isDescending) return "ORDER BY DESC is not supported by continuous queries";
+            return joinCode(cFunctions, new StringBuilder(), getContinuousCode(plan, cFunctions));
+        }
+
+        if (plan.isEmpty) {
+            // Only the output functions are used, not those of the expressions that are never evaluated
+            OrderedHashMap<String, String> outputFunctions = new OrderedHashMap<>();
+            putOutputFunctions(plan, outputFunctions);
+            return joinCode(outputFunctions, new StringBuilder(), getEmptyResultCode(plan));
+        }
+        putOutputFunctions(plan, cFunctions);
+        putPredicateFunction(plan, cFunctions);
+
+        // The aggregate operator outputs each group once, while a record is in several sliding windows
+        if (plan.isSlidingWindow() && (codeGenMode != CodeGenMode.FUSED || plan.isDescending)) {
+            return "Sliding windows are only supported by fused and continuous code in ascending order";
+        }
+        addPageFootprint(getTableRangeVariables(query).get(0).getTable());
+
+        if (plan.isPointLookup()) {
+            return joinCode(cFunctions, new StringBuilder(), getPointLookupCode(plan));
+        }
+
+        if (plan.isDescending) {
+            return joinCode(cFunctions, new StringBuilder(), getReverseScanCode(plan));
+        }
+
+        if (plan.isKeyAggregate()) {
+            return joinCode(cFunctions, new StringBuilder(), getKeyAggregateCode(plan));
+        }
+
+        planZoneMapScan(plan, getTableRangeVariables(query).get(0).getTable());
+        if (codeGenMode == CodeGenMode.FUSED) {
+            return joinCode(cFunctions, new StringBuilder(), getFusedCode(plan, cFunctions));
+        }
+
+        OperatorReturn r = getOperatorCode(plan, cFunctions);
         if (!r.success) return r.errorMsg;
 
-        operatorCode = r.operatorCode;
+        return joinCode(cFunctions, r.operatorCode, getExecCode(plan, r));
+    }
+
+    private StringBuilder getExecCode(QueryPlan plan, OperatorReturn r) {
+        StringBuilder queryCode = new StringBuilder();
         Schema outputSchema = r.outputSchema;
         Schema tableSchema = r.tableSchema;
 
+        String indent = "";
+
         // Create function header
         queryCode.append(indent).append("void execOperator(embedDBState* state) {\n");
         indent += "    ";
 
-        // Init an iterator and list of allocated values
-        queryCode.append(indent).append("void** allocatedValues;\n");
+        if (allocationMode == AllocationMode.STATIC) {
+            // Storage for the values owned by the operator
+            queryCode.append(indent).append("static embedDBQueryStorage storage;\n");
+
+            // Create operator with function call
+            queryCode.append(indent).append("embedDBOperator* op = createOperator(state, &storage);\n");
+        } else {
+            // Init an iterator and list of allocated values
+            queryCode.append(indent).append("void** allocatedValues;\n");
 
-        // Create operator with function call
-        queryCode.append(indent).append("embedDBOperator* op = createOperator(state, &allocatedValues);\n");
+            // Create operator with function call
+            queryCode.append(indent).append("embedDBOperator* op = createOperator(state, &allocatedValues);\n");
+        }
 
         // Get record buffer
         queryCode.append(indent).append("void* recordBuffer = op->recordBuffer;\n");
@@ -147,48 +437,244 @@ public class SQLConverter implements Closeable {
         }
 
         // Create loop that goes over iterator
-        queryCode.append("\n").append(indent).append("// Print as csv\n");
-        queryCode.append(indent).append("while (exec(op)) {\n");
+        queryCode.append("\n").append(indent).append(switch (outputMode) {
+            case CSV -> "// Print as csv\n";
+            case CALLBACK -> "// Pass each row to onResultRow\n";
+            case RING_BUFFER -> "// Keep the last rows in the result ring\n";
+            case DELTA -> "// Pass each row to onResultBytes as deltas\n";
+        });
+        if (plan.limit >= 0) {
+            queryCode.append(indent).append("for (uint32_t rows = 0; rows < ").append(plan.limit).append(" && exec(op); rows++) {\n");
+        } else {
+            queryCode.append(indent).append("while (exec(op)) {\n");
+        }
         indent += "    ";
 
         // Process each record
-        queryCode.append(indent).append("printf(\"");
-        for (String type : outputSchema.colDataTypes()) {
-            if (type.contains("int")) {
-                queryCode.append("%d,");
-            } else {
-                queryCode.append("%f,");
-            }
-        }
-        queryCode.delete(queryCode.length() - 1, queryCode.length());  // Remove last comma
-        queryCode.append("\\n\", ");
-        outputSchema.colNames().forEach(colName -> queryCode.append("*").append(colName).append(", "));
-        queryCode.delete(queryCode.length() - 2, queryCode.length());  // Remove last comma
-        queryCode.append(");\n");
+        ArrayList<String> values = new ArrayList<>();
+        outputSchema.colNames().forEach(colName -> values.add("*" + colName));
+        appendOutputRow(queryCode, indent, plan, outputSchema.colDataTypes(), values);
 
         // Close loop that goes over iterator
         indent = indent.substring(0, indent.length() - 4);
         queryCode.append(indent).append("}\n");
-        queryCode.append(indent).append("printf(\"\\n\");\n\n");
+        appendUngroupedReport(queryCode, indent, plan);
+        appendOutputEnd(queryCode, indent, plan);
+        queryCode.append("\n");
 
         // Close top level operator
         queryCode.append(indent).append("op->close(op);\n");
 
         // Free top level operator
-        queryCode.append(indent).append("embedDBFreeOperatorRecursive(&op);\n");
+        if (r.hasStorageOperators) {
+            queryCode.append(indent).append("freeStorageOperator(&op, &storage);\n");
+        } else {
+            queryCode.append(indent).append("embedDBFreeOperatorRecursive(&op);\n");
+        }
         queryCode.append(indent).append("recordBuffer = NULL;\n");
-        queryCode.append(indent).append("for (int i = 0; i < ").append(r.numVarsToFree).append("; i++) {\n");
-        indent += "    ";
-        queryCode.append(indent).append("free(allocatedValues[i]);\n");
-        indent = indent.substring(0, indent.length() - 4);
-        queryCode.append(indent).append("}\n");
-        queryCode.append(indent).append("free(allocatedValues);\n");
+        if (allocationMode == AllocationMode.HEAP) {
+            queryCode.append(indent).append("for (int i = 0; i < ").append(r.numVarsToFree).append("; i++) {\n");
+            indent += "    ";
+            queryCode.append(indent).append("free(allocatedValues[i]);\n");
+            indent = indent.substring(0, indent.length() - 4);
+            queryCode.append(indent).append("}\n");
+            queryCode.append(indent).append("free(allocatedValues);\n");
+        }
 
         // Close function
         //noinspection ConstantValue
         indent = indent.substring(0, indent.length() - 4);
         queryCode.append(indent).append("}\n");
 
+        return queryCode;
+    }
+
+    /**
+     * Outputs the values as a row of the result. A csv row starts with the row label of the query if it has one
+     */
+    private void appendOutputRow(StringBuilder code, String indent, QueryPlan plan, List<String> dataTypes, List<String> values) {
+        if (outputMode != OutputMode.CSV) {
+            code.append(indent).append(plan.getSymbol("outputRow")).append("(").append(String.join(", ", values)).append(");\n");
+            return;
+        }
+        StringJoiner formats = new StringJoiner(",");
+        StringJoiner arguments = new StringJoiner(", ");
+        if (!plan.rowLabel.isEmpty()) formats.add(plan.rowLabel);
+        for (int i = 0; i < values.size(); i++) {
+            String type = dataTypes.get(i);
+            if (!type.contains("int")) {
+                formats.add("%f");
+                arguments.add(values.get(i));
+            } else if (type.contains("64")) {
+                boolean isUnsigned = type.startsWith("u");
+                formats.add(isUnsigned ? "%llu" : "%lld");
+                arguments.add((isUnsigned ? "(unsigned long long)" : "(long long)") + values.get(i));
+            } else {
+                formats.add("%d");
+                arguments.add(values.get(i));
+            }
+        }
+        code.append(indent).append("printf(\"").append(formats).append("\\n\", ").append(arguments).append(");\n");
+    }
+
+    /**
+     * Ends the result of the queries
+     */
+    private void appendOutputEnd(StringBuilder code, String indent, List<QueryPlan> plans) {
+        switch (outputMode) {
+            case CSV -> code.append(indent).append("printf(\"\\n\");\n");
+            case CALLBACK -> {
+                for (QueryPlan plan : plans)
+                    code.append(indent).append(plan.getSymbol("onResultRow")).append("(NULL);\n");
+            }
+            case DELTA -> {
+                for (QueryPlan plan : plans) {
+                    String previous = plan.getSymbol("resultPrevious");
+                    code.append(indent).append("memset(").append(previous).append(", 0, sizeof(").append(previous).append("));\n");
+                    code.append(indent).append(plan.getSymbol("onResultBytes")).append("(NULL, 0);\n");
+                }
+            }
+            case RING_BUFFER -> {
+                // The rows stay in the ring for the caller
+            }
+        }
+    }
+
+    private void appendOutputEnd(StringBuilder code, String indent, QueryPlan plan) {
+        appendOutputEnd(code, indent, List.of(plan));
+    }
+
+    /**
+     * Adds the function that checks the comparisons of expressions of the query on a record, if it has any
+     */
+    private void putPredicateFunction(QueryPlan plan, OrderedHashMap<String, String> cFunctions) {
+        if (plan.expressionSelections.isEmpty()) return;
+        Schema tableSchema = plan.tableSchema;
+        StringBuilder code = new StringBuilder();
+        code.append("int8_t ").append(plan.getSymbol("wherePredicate")).append("(int8_t* record) {\n");
+        Set<Integer> loadedColumns = new HashSet<>();
+        StringJoiner condition = new StringJoiner(" && ");
+        for (ExpressionSelection es : plan.expressionSelections) {
+            for (ArithmeticExpression side : List.of(es.left, es.right))
+                for (int colNum : side.getCols())
+                    appendLoadColumn(code, "    ", tableSchema, colNum, loadedColumns);
+
+            // SQL integers are signed, so an unsigned comparison is done in int64_t where a subtraction or negative constant does not wrap around
+            ArithmeticExpression left = es.left, right = es.right;
+            String columnCast = "";
+            if (left.getDataType().startsWith("u") || right.getDataType().startsWith("u")) {
+                left = left.withColumnType("int64_t");
+                right = right.withColumnType("int64_t");
+                putFunctions(left, cFunctions);
+                putFunctions(right, cFunctions);
+                columnCast = "(int64_t)";
+            }
+            condition.add(getExpressionCode(tableSchema, left, columnCast) + " " + getComparisonOperator(es.type) + " " + getExpressionCode(tableSchema, right, columnCast));
+        }
+        code.append("    return ").append(condition).append(";\n");
+        code.append("}\n");
+        cFunctions.put(plan.getSymbol("wherePredicate"), code.toString());
+    }
+
+    /**
+     * C code of an expression of the columns, which are read into variables named after them and cast with the given prefix
+     */
+    private static String getExpressionCode(Schema tableSchema, ArithmeticExpression expr, String columnCast) {
+        return String.format(expr.toFormattedString(), expr.getCols().stream().map(colNum -> columnCast + tableSchema.getColumn(colNum).name).toArray());
+    }
+
+    /**
+     * Skips a record that does not pass the comparisons of expressions of the query
+     */
+    private void appendPredicateCheck(StringBuilder code, String indent, QueryPlan plan, String skip) {
+        if (plan.expressionSelections.isEmpty()) return;
+        code.append(indent).append("if (!").append(plan.getSymbol("wherePredicate")).append("(record)) ").append(skip).append(";\n");
+    }
+
+    /**
+     * Adds the outputRow function of the query for output modes other than csv, which packs the row of output columns
+     * into its destination, and the declarations of the functions it calls that the caller defines
+     */
+    private void putOutputFunctions(QueryPlan plan, OrderedHashMap<String, String> cFunctions) {
+        if (outputMode == OutputMode.CSV) return;
+        List<String> dataTypes = plan.outputSchema.colDataTypes();
+        String indent = "    ";
+        StringBuilder code = new StringBuilder();
+        StringJoiner parameters = new StringJoiner(", ");
+        int rowSize = 0;
+        for (int i = 0; i < dataTypes.size(); i++) {
+            parameters.add(dataTypes.get(i) + " value" + i);
+            rowSize += getTypeSize(dataTypes.get(i));
+        }
+
+        String ring = plan.getSymbol("resultRing");
+        String ringStart = plan.getSymbol("resultRingStart");
+        String ringCount = plan.getSymbol("resultRingCount");
+        String previous = plan.getSymbol("resultPrevious");
+        switch (outputMode) {
+            case CALLBACK -> code.append("void ").append(plan.getSymbol("onResultRow")).append("(const void* row);\n\n");
+            case RING_BUFFER -> {
+                code.append("int8_t ").append(ring).append("[").append(resultRingRows).append("][").append(rowSize).append("];\n");
+                code.append("uint32_t ").append(ringStart).append(" = 0;\n");
+                code.append("uint32_t ").append(ringCount).append(" = 0;\n\n");
+            }
+            case DELTA -> {
+                cFunctions.put("embedDBPutDelta", CFunctions.putDelta());
+                code.append("void ").append(plan.getSymbol("onResultBytes")).append("(const uint8_t* bytes, uint32_t length);\n\n");
+                code.append("uint64_t ").append(previous).append("[").append(dataTypes.size()).append("];\n\n");
+            }
+        }
+
+        code.append("void ").append(plan.getSymbol("outputRow")).append("(").append(parameters).append(") {\n");
+        if (outputMode == OutputMode.DELTA) {
+            // A varint of a 64-bit value takes at most 10 bytes
+            int maxLength = 0;
+            for (String type : dataTypes)
+                maxLength += type.contains("int") ? 10 : getTypeSize(type);
+            code.append(indent).append("uint8_t bytes[").append(maxLength).append("];\n");
+            code.append(indent).append("uint32_t length = 0;\n");
+            for (int i = 0; i < dataTypes.size(); i++) {
+                String type = dataTypes.get(i);
+                if (type.contains("int")) {
+                    code.append(indent).append("length += embedDBPutDelta(bytes + length, (uint64_t)value").append(i).append(" - ").append(previous).append("[").append(i).append("]);\n");
+                    code.append(indent).append(previous).append("[").append(i).append("] = (uint64_t)value").append(i).append(";\n");
+                } else {
+                    code.append(indent).append("memcpy(bytes + length, &value").append(i).append(", sizeof(").append(type).append("));\n");
+                    code.append(indent).append("length += sizeof(").append(type).append(");\n");
+                }
+            }
+            code.append(indent).append(plan.getSymbol("onResultBytes")).append("(bytes, length);\n");
+        } else {
+            if (outputMode == OutputMode.CALLBACK) {
+                code.append(indent).append("int8_t row[").append(rowSize).append("];\n");
+            } else {
+                code.append(indent).append("int8_t* row = ").append(ring).append("[(").append(ringStart).append(" + ").append(ringCount).append(") % ").append(resultRingRows).append("];\n");
+            }
+            int offset = 0;
+            for (int i = 0; i < dataTypes.size(); i++) {
+                code.append(indent).append("memcpy(row + ").append(offset).append(", &value").append(i).append(", sizeof(").append(dataTypes.get(i)).append("));\n");
+                offset += getTypeSize(dataTypes.get(i));
+            }
+            if (outputMode == OutputMode.CALLBACK) {
+                code.append(indent).append(plan.getSymbol("onResultRow")).append("(row);\n");
+            } else {
+                // Once the ring is full the new row took the place of the oldest
+                code.append(indent).append("if (").append(ringCount).append(" < ").append(resultRingRows).append(") {\n");
+                code.append(indent).append("    ").append(ringCount).append("++;\n");
+                code.append(indent).append("} else {\n");
+                code.append(indent).append("    ").append(ringStart).append(" = (").append(ringStart).append(" + 1) % ").append(resultRingRows).append(";\n");
+                code.append(indent).append("}\n");
+            }
+        }
+        code.append("}\n");
+        cFunctions.put(plan.getSymbol("outputRow"), code.toString());
+    }
+
+    private static int getTypeSize(String dataType) {
+        return dataType.contains("64") || dataType.equals("double") ? 8 : 4;
+    }
+
+    private String joinCode(OrderedHashMap<String, String> cFunctions, StringBuilder operatorCode, StringBuilder queryCode) {
         // Build function code
         StringBuilder functionCode = new StringBuilder();
         String[] valuesToArray = cFunctions.valuesToArray(new String[cFunctions.size()]);
@@ -211,6 +697,7 @@ public class SQLConverter implements Closeable {
         if (!queryCode.isEmpty()) {
             output += queryCode;
         }
+        footprint.complete(output);
         return output;
     }
 
@@ -221,6 +708,7 @@ public class SQLConverter implements Closeable {
         Schema outputSchema;
         Schema tableSchema;
         int numVarsToFree;
+        boolean hasStorageOperators;
 
         public OperatorReturn(StringBuilder iteratorCode, Schema outputSchema, Schema tableSchema, int numVarsToFree) {
             this.success = true;
@@ -236,224 +724,251 @@ public class SQLConverter implements Closeable {
         }
     }
 
-    private OperatorReturn getOperatorCode(QuerySpecification query, OrderedHashMap<String, String> cFunctions) {
-        RangeVariable rv = query.getRangeVariables()[0];
+    /**
+     * Result of analysing a query, shared by all code generators.
+     * Selections are split into iterator bounds and non-index selections, and every column produced by the
+     * aggregation (visible columns first, then the HAVING column if it is not already visible) is described by an
+     * AggregateColumn.
+     */
+    private static class QueryPlan {
+        boolean success = true;
+        String errorMsg;
+        boolean isEmpty;
+        ArrayList<String> accessPathComment = new ArrayList<>();
+        QuerySpecification query;
+        Schema tableSchema;
+        Schema outputSchema;
+        Schema aggregateSchema;
+        ArrayList<IteratorBound> iteratorBounds = new ArrayList<>();
+        IteratorRanges iteratorRanges;
+        ArrayList<LogicalSelection> nonIndexSelections = new ArrayList<>();
+        /** Comparisons of expressions that are not a range of one column, checked after the selections */
+        ArrayList<ExpressionSelection> expressionSelections = new ArrayList<>();
+        /** GROUP BY expressions in the order of the query */
+        ArrayList<ArithmeticExpression> groupByExpressions = new ArrayList<>();
+        boolean isGroupedByConstant;
+        ArrayList<AggregateColumn> aggregates = new ArrayList<>();
+        boolean hasHaving;
+        int havingColumnNum;
+        int havingType;
+        long havingValue;
+        boolean isDescending;
+        /** Maximum number of rows to output, or -1 for no LIMIT */
+        long limit = -1;
+        /** Slots in the hash table of a GROUP BY that does not follow the key order, or 0 when groups are consecutive records */
+        long groupTableSize;
+        long maxGroups;
+        /** Size of the windows of a GROUP BY SLIDING_BUCKET, or 0 without sliding windows */
+        long windowSize;
+        /** Distance between the starts of consecutive sliding windows, which is the width of the panes they are made of */
+        long windowSlide;
+        /** Name of the struct holding the state of the query in fused code, or empty for local variables */
+        String queryName = "";
+        /** Written before each output row of a query that shares its scan with other queries */
+        String rowLabel = "";
+        /** Offset in the page header of the zone map of each column whose zone maps let the scan skip pages, or empty to read the table with an iterator */
+        Map<Integer, Integer> zoneMapOffsets = new LinkedHashMap<>();
+
+        QueryPlan(QuerySpecification query) {
+            this.query = query;
+        }
 
-        if (rv.isLeftJoin || rv.isRightJoin) {
-            return new OperatorReturn("Left and right joins are not supported");
+        QueryPlan(String errorMsg) {
+            this.success = false;
+            this.errorMsg = errorMsg;
         }
 
-        StringBuilder operatorCode = new StringBuilder();
-        ArrayList<String> freeVars = new ArrayList<>();
-        ArrayList<String> localFreeVars = new ArrayList<>();
-        String indent = "";
+        boolean isGrouped() {
+            return isGroupedByConstant || !groupByExpressions.isEmpty();
+        }
 
-        // Get size of record/column schema
-        Schema outputSchema = new Schema(query);
-        Schema tableSchema = new Schema(rv.getTable());
+        /**
+         * True for a GROUP BY expression that never decreases with the key, so its groups are consecutive records
+         */
+        boolean isRunKey(int groupNum) {
+            ArithmeticExpression expression = groupByExpressions.get(groupNum);
+            return expression.getCol() == 0 && expression.isNonDecreasing();
+        }
 
-        // Add function header
-        operatorCode.append(indent).append("embedDBOperator* createOperator(embedDBState* state, void*** allocatedValues) {\n");
-        indent += "    ";
+        /**
+         * Indexes of the GROUP BY expressions that are grouped by consecutive records, or by the hash table
+         */
+        List<Integer> getGroupKeys(boolean isRun) {
+            ArrayList<Integer> keys = new ArrayList<>();
+            for (int k = 0; k < groupByExpressions.size(); k++)
+                if (isRunKey(k) == isRun)
+                    keys.add(k);
+            return keys;
+        }
 
-        // Find all selections and sort them into index and non-index conditions
-        ArrayList<LogicalSelection> indexSelections = new ArrayList<>();
-        ArrayList<LogicalSelection> nonIndexSelections = new ArrayList<>();
-        int[] columnIndexes = rv.getTable().bestIndexForColumn;
-        for (LogicalSelection ls : findAllSelections(rv)) {
-            if (columnIndexes[ls.colNum] >= 0) {
-                indexSelections.add(ls);
-            } else {
-                nonIndexSelections.add(ls);
-            }
+        boolean isHashGrouped() {
+            return groupTableSize > 0;
         }
 
-        // Find group by
-        ArithmeticExpression groupByExpression = null;
-        if (query.isAggregated && !query.isGrouped) {
-            groupByExpression = new ArithmeticExpression(OpTypes.VALUE, null, null, 1);
-            query.isGrouped = true;
-            cFunctions.put("groupFunction", """
-                    int8_t groupFunction(const void* lastRecord, const void* record) {
-                        return 1;
-                    }
-                    """);
-        } else if (query.isGrouped) {
-            if (query.groupSet.groupExpressions.length > 1) {
-                return new OperatorReturn("Grouping by multiple expressions is not currently supported");
-            }
+        boolean isZoneMapScan() {
+            return !zoneMapOffsets.isEmpty();
+        }
 
-            // Parse expression
-            Expression groupExpression = query.groupSet.groupExpressions[0];
-            groupByExpression = getGroupBy(groupExpression, cFunctions);
+        boolean isSlidingWindow() {
+            return windowSlide > 0;
+        }
 
-            // Create group function
-            StringBuilder functionCode = new StringBuilder();
-            functionCode.append("int8_t groupFunction(const void* lastRecord, const void* record) {\n");
-            String functionIndent = "    ";
-            int col = groupByExpression.getCol();
-            Schema.Column column = tableSchema.getColumn(col);
-            String dataType = column.dataType;
-            int offset = tableSchema.getColOffset(col);
-            String formattedExpression = groupByExpression.toFormattedString();
-            functionCode.append(functionIndent).append(dataType).append(" lastValue = *((").append(dataType).append("*)((int8_t*)lastRecord + ").append(offset).append("));\n");
-            functionCode.append(functionIndent).append(dataType).append(" value = *((").append(dataType).append("*)((int8_t*)record + ").append(offset).append("));\n");
-            functionCode.append(functionIndent).append("return ").append(String.format(formattedExpression, "lastValue")).append(" == ").append(String.format(formattedExpression, "value")).append(";\n");
-            functionCode.append("}\n");
-            cFunctions.put("groupFunction", functionCode.toString());
+        /**
+         * Number of panes of one slide in a sliding window, which is the size of the ring of pane aggregates
+         */
+        long getWindowPanes() {
+            return windowSize / windowSlide;
         }
 
-        /*
-         * Parse index selections into an embedDBIterator
+        /**
+         * Width of the windows when the query groups by a single expression of the unsigned key divided by a constant,
+         * such as TIME_BUCKET, so a record is checked against its window with a subtraction and the expression is only
+         * computed when a window starts, or 0 otherwise
          */
-        boolean minKeyIsSet = false, maxKeyIsSet = false, minDataIsSet = false, maxDataIsSet = false;
+        long getTumblingWindowWidth() {
+            if (groupByExpressions.size() != 1 || isHashGrouped() || isSlidingWindow() || !isRunKey(0)) return 0;
+            if (!tableSchema.getColumn(0).dataType.startsWith("u")) return 0;
+            return groupByExpressions.get(0).getBucketWidth();
+        }
 
-        // Sort index selections by column number, so we have nice code
-        indexSelections.sort(Comparator.comparingInt(o -> o.colNum));
+        /**
+         * Prefix of the variables holding the state of the query in fused code, which are members of a struct when the
+         * query has a name
+         */
+        String getStatePrefix() {
+            return queryName.isEmpty() ? "" : queryName + ".";
+        }
 
-        // Parse
-        for (LogicalSelection ls : indexSelections) {
-            boolean isKey = columnIndexes[ls.colNum] == 0;
-            String dataTypeString = tableSchema.getColumn(ls.colNum).dataType;
+        /**
+         * Name of a C symbol of the query, starting with the query name if it has one
+         */
+        String getSymbol(String name) {
+            return queryName.isEmpty() ? name : queryName + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        }
 
-            // Determine if this is a min or max value
-            boolean skip = false;
-            boolean isMin = false, isMax = false;
-            switch (ls.type) {
-                case OpTypes.GREATER_EQUAL -> isMin = true;
-                case OpTypes.GREATER -> {
-                    ls.value++;
-                    isMin = true;
-                }
-                case OpTypes.SMALLER_EQUAL -> isMax = true;
-                case OpTypes.SMALLER -> {
-                    ls.value--;
-                    isMax = true;
-                }
-                case OpTypes.EQUAL -> isMin = isMax = true;
-                case OpTypes.NOT_EQUAL -> {
-                    nonIndexSelections.add(ls);
-                    skip = true;
-                }
-                default -> throw new RuntimeException("Unknown type");
-            }
-            if (skip) continue;
+        boolean isPointLookup() {
+            IteratorBound minKey = getIteratorBound("minKey"), maxKey = getIteratorBound("maxKey");
+            return !isGrouped() && minKey != null && maxKey != null && minKey.value == maxKey.value;
+        }
 
-            // Allocate memory for value and set value
-            if (isMin) {
-                String valueVariableName = isKey ? "minKey" : "minData";
-                operatorCode.append(indent).append(dataTypeString).append("* ").append(valueVariableName).append(" = (").append(dataTypeString).append("*)malloc(").append(tableSchema.getColSize(ls.colNum)).append(");\n");
-                freeVars.add(valueVariableName);
-                operatorCode.append(indent).append("*").append(valueVariableName).append(" = ").append(ls.value).append(";\n");
-            }
-            if (isMax) {
-                String valueVariableName = isKey ? "maxKey" : "maxData";
-                operatorCode.append(indent).append(dataTypeString).append("* ").append(valueVariableName).append(" = (").append(dataTypeString).append("*)malloc(").append(tableSchema.getColSize(ls.colNum)).append(");\n");
-                freeVars.add(valueVariableName);
-                operatorCode.append(indent).append("*").append(valueVariableName).append(" = ").append(ls.value).append(";\n");
+        /**
+         * True for an aggregation without GROUP BY of only MIN and MAX of the key, and COUNT if the whole table is read,
+         * with no selections other than a key range
+         */
+        boolean isKeyAggregate() {
+            if (!isGroupedByConstant || !nonIndexSelections.isEmpty() || !expressionSelections.isEmpty() || iteratorRanges != null || getIteratorBound("minData") != null || getIteratorBound("maxData") != null) {
+                return false;
             }
-
-            // Flag that min or max value is set
-            if (isKey) {
-                if (isMin) {
-                    minKeyIsSet = true;
-                }
-                if (isMax) {
-                    maxKeyIsSet = true;
-                }
-            } else {
-                if (isMin) {
-                    minDataIsSet = true;
-                }
-                if (isMax) {
-                    maxDataIsSet = true;
-                }
+            boolean hasKeyBounds = !iteratorBounds.isEmpty();
+            Set<Integer> types = new HashSet<>();
+            for (AggregateColumn agg : aggregates) {
+                boolean isKeyMinMax = (agg.type == OpTypes.MIN || agg.type == OpTypes.MAX) && agg.colNum == 0;
+                if (!isKeyMinMax && !(agg.type == OpTypes.COUNT && !hasKeyBounds)) return false;
+                if (!types.add(agg.type)) return false;
             }
+            return true;
         }
 
-        // Set up iterator
-        operatorCode.append(indent).append("embedDBIterator* it = (embedDBIterator*)malloc(sizeof(embedDBIterator));\n");
-        freeVars.add("it");
-        if (minKeyIsSet) {
-            operatorCode.append(indent).append("it->minKey = ").append("minKey").append(";\n");
-        } else {
-            operatorCode.append(indent).append("it->minKey = NULL;\n");
-        }
-        if (maxKeyIsSet) {
-            operatorCode.append(indent).append("it->maxKey = ").append("maxKey").append(";\n");
-        } else {
-            operatorCode.append(indent).append("it->maxKey = NULL;\n");
+        IteratorBound getIteratorBound(String name) {
+            for (IteratorBound bound : iteratorBounds)
+                if (bound.name.equals(name))
+                    return bound;
+            return null;
         }
-        if (minDataIsSet) {
-            operatorCode.append(indent).append("it->minData = ").append("minData").append(";\n");
-        } else {
-            operatorCode.append(indent).append("it->minData = NULL;\n");
+    }
+
+    /**
+     * A value of minKey, maxKey, minData or maxData of the embedDBIterator
+     */
+    private static class IteratorBound {
+        String name;
+        int colNum;
+        long value;
+
+        IteratorBound(String name, int colNum, long value) {
+            this.name = name;
+            this.colNum = colNum;
+            this.value = value;
         }
-        if (maxDataIsSet) {
-            operatorCode.append(indent).append("it->maxData = ").append("maxData").append(";\n");
-        } else {
-            operatorCode.append(indent).append("it->maxData = NULL;\n");
+    }
+
+    /**
+     * Value ranges of one indexed column. Each range is read in turn by setting the iterator bounds minName and maxName.
+     */
+    private static class IteratorRanges {
+        String minName;
+        String maxName;
+        int colNum;
+        List<long[]> ranges;
+
+        IteratorRanges(boolean isKey, LogicalSelection ls) {
+            this.minName = isKey ? "minKey" : "minData";
+            this.maxName = isKey ? "maxKey" : "maxData";
+            this.colNum = ls.colNum;
+            this.ranges = ls.ranges;
         }
-        operatorCode.append(indent).append("embedDBInitIterator(state, it);\n\n");
+    }
 
-        /*
-         * Parse non-index selections into embedDBOperators
-         */
-        String topLevelOperator;
+    /**
+     * One column of the aggregate output. type is an aggregate OpType, or OpTypes.COLUMN for the group by column.
+     */
+    private static class AggregateColumn {
+        int type;
+        int colNum;
+        int exprIndex;
+        String name;
 
-        // Create schema struct
-        operatorCode.append(indent).append("uint8_t numCols = ").append(tableSchema.getNumCols()).append(";\n");
-        operatorCode.append(indent).append("int8_t colSizes[] = {");
-        tableSchema.forEach(column -> operatorCode.append(column.size).append(", "));
-        operatorCode.delete(operatorCode.length() - 2, operatorCode.length());  // Remove last comma
-        operatorCode.append("};\n");
-        operatorCode.append(indent).append("int8_t colSignedness[] = {");
-        for (int j = 0; j < tableSchema.getNumCols(); j++) {
-            if (j == 0) {
-                operatorCode.append("embedDB_COLUMN_UNSIGNED");
-            } else {
-                operatorCode.append("embedDB_COLUMN_SIGNED");
-            }
-            if (j < tableSchema.getNumCols() - 1) {
-                operatorCode.append(", ");
-            }
+        /** Index of the GROUP BY expression of a group by column */
+        int groupNum;
+
+        AggregateColumn(int type, int colNum, int exprIndex, String name) {
+            this.type = type;
+            this.colNum = colNum;
+            this.exprIndex = exprIndex;
+            this.name = name;
         }
-        operatorCode.append("};\n");
-        operatorCode.append(indent).append("embedDBSchema* schema = embedDBCreateSchema(numCols, colSizes, colSignedness);\n");
 
-        // Create table scan operator
-        operatorCode.append(indent).append("embedDBOperator* scanOp = createTableScanOperator(state, it, schema);\n");
-        topLevelOperator = "scanOp";
+        AggregateColumn(int colNum, int exprIndex, String name, int groupNum) {
+            this(OpTypes.COLUMN, colNum, exprIndex, name);
+            this.groupNum = groupNum;
+        }
 
-        // Turn each condition into a selection operator
-        for (LogicalSelection ls : nonIndexSelections) {
-            String type = switch (ls.type) {
-                case OpTypes.GREATER_EQUAL -> "SELECT_GTE";
-                case OpTypes.GREATER -> "SELECT_GT";
-                case OpTypes.SMALLER -> "SELECT_LT";
-                case OpTypes.SMALLER_EQUAL -> "SELECT_LTE";
-                case OpTypes.NOT_EQUAL -> "SELECT_NEQ";
-                case OpTypes.EQUAL -> "SELECT_EQ";
-                default -> throw new RuntimeException("Unknown type");
-            };
-            Schema.Column column = tableSchema.getColumn(ls.colNum);
-            String colName = column.name;
-            String colNameWithType = type.substring(7) + colName;
-            String selectionVariableName = "select" + colNameWithType;
-            String dataType = column.dataType;
+        boolean isGroupColumn() {
+            return type == OpTypes.COLUMN;
+        }
+    }
 
-            String valueVariableName = "selVal" + colNameWithType;
+    /**
+     * Range variables of the tables in the query, leaving out the ones HSQLDB generates for IN lists
+     */
+    private List<RangeVariable> getTableRangeVariables(QuerySpecification query) {
+        ArrayList<RangeVariable> rangeVariables = new ArrayList<>();
+        for (RangeVariable rv : query.getRangeVariables())
+            if (!rv.isGenerated) rangeVariables.add(rv);
+        return rangeVariables;
+    }
 
-            // Allocate memory for value and set value
-            operatorCode.append(indent).append(dataType).append("* ").append(valueVariableName).append(" = (").append(dataType).append("*)malloc(").append(column.size).append(");\n");
-            freeVars.add(valueVariableName);
-            operatorCode.append(indent).append("*").append(valueVariableName).append(" = ").append(ls.value).append(";\n");
+    private QueryPlan planQuery(QuerySpecification query, OrderedHashMap<String, String> cFunctions) {
+        RangeVariable rv = getTableRangeVariables(query).get(0);
 
-            // Create operator
-            operatorCode.append(indent).append("embedDBOperator* ").append(selectionVariableName).append(" = createSelectionOperator(").append(topLevelOperator).append(", ").append(ls.colNum).append(", ").append(type).append(", selVal").append(colNameWithType).append(");\n");
-            topLevelOperator = selectionVariableName;
+        if (rv.isLeftJoin || rv.isRightJoin) {
+            return new QueryPlan("Left and right joins are not supported");
         }
 
+        QueryPlan plan = new QueryPlan(query);
+
+        // Get size of record/column schema
+        Schema outputSchema = new Schema(query);
+        Schema tableSchema = new Schema(rv.getTable());
+        plan.outputSchema = outputSchema;
+        plan.tableSchema = tableSchema;
+
+        // Find all selections and sort them into index and non-index conditions
+        ArrayList<LogicalSelection> indexSelections = new ArrayList<>();
+        ArrayList<LogicalSelection> nonIndexSelections = plan.nonIndexSelections;
+        int[] columnIndexes = rv.getTable().bestIndexForColumn;
+        ArrayList<LogicalSelection> allSelections = findAllSelections(plan, cFunctions);
+
         if (query.havingColumnCount > 1) {
             throw new RuntimeException("Multiple HAVING not allowed");
         }
@@ -463,9 +978,217 @@ public class SQLConverter implements Closeable {
             throw new RuntimeException("HAVING clause must be a logical expression");
         }
 
-        // Create group by operator
+        // Split HAVING into its comparisons, with the aggregate or GROUP BY expression on the left. A comparison on a GROUP
+        // BY expression holds for all the records of a group or for none, so it is checked on the records before they are
+        // grouped, as a range of their column where possible. A record of a sliding window is in several groups, so those
+        // stay after the aggregation, like a comparison on an aggregate
+        Expression havingComparison = null;
+        Expression havingReference = null;
+        if (hasHaving) {
+            ArrayList<Expression> comparisons = new ArrayList<>();
+            getConjuncts(query.exprColumns[query.indexStartHaving], comparisons);
+            hasHaving = false;
+            for (Expression comparison : comparisons) {
+                Expression left = comparison.getLeftNode();
+                Expression right = comparison.getRightNode();
+
+                Expression havingColumn;
+                long value;
+                int type;
+                if (left instanceof ExpressionColumn && right instanceof ExpressionValue) {
+                    havingColumn = left;
+                    value = getIntValue(right);
+                    type = comparison.getType();
+                } else if (left instanceof ExpressionValue && right instanceof ExpressionColumn) {
+                    havingColumn = right;
+                    value = getIntValue(left);
+                    type = getSwappedComparison(comparison.getType());
+                } else {
+                    throw new RuntimeException("HAVING expression invalid");
+                }
+                Expression reference = query.exprColumns[havingColumn.getColumnIndex()];
+                if (reference.getType() == OpTypes.SIMPLE_COLUMN) reference = query.exprColumns[reference.getColumnIndex()];
+
+                boolean isSlidingWindow = reference instanceof FunctionSQLInvoked function && function.getRoutineName().equals("SLIDING_BUCKET");
+                if (!isSupportedAggregate(reference) && getGroupNum(query, reference) >= 0 && !isSlidingWindow) {
+                    ArithmeticExpression groupKey = getGroupBy(reference, tableSchema, cFunctions);
+                    List<LogicalSelection> inverted = invertComparison(tableSchema, groupKey, type, value);
+                    if (inverted != null) {
+                        allSelections.addAll(inverted);
+                        continue;
+                    } else if (value == (int) value) {
+                        plan.expressionSelections.add(new ExpressionSelection(groupKey, type, new ArithmeticExpression(OpTypes.VALUE, null, null, (int) value)));
+                        continue;
+                    }
+                }
+
+                if (hasHaving) {
+                    throw new RuntimeException("Only one HAVING comparison on an aggregate is supported");
+                }
+                hasHaving = true;
+                havingComparison = comparison;
+                havingReference = reference;
+                plan.havingValue = value;
+                plan.havingType = type;
+            }
+        }
+
+        ArrayList<LogicalSelection> selections = mergeSelections(allSelections, tableSchema);
+        if (selections == null) {
+            plan.isEmpty = true;
+            return plan;
+        }
+
+        // A comparison on an aggregate that every group passes is left out, and one that no group can pass leaves the
+        // result empty
+        if (hasHaving) {
+            long[] range = getAggregateRange(havingReference, tableSchema, selections);
+            if (range != null) {
+                List<long[]> passing = intersectRanges(List.of(range), new LogicalSelection(0, plan.havingType, plan.havingValue).getRanges());
+                if (passing.isEmpty()) {
+                    plan.isEmpty = true;
+                    return plan;
+                }
+                if (passing.size() == 1 && passing.get(0)[0] == range[0] && passing.get(0)[1] == range[1]) hasHaving = false;
+            }
+        }
+
+        for (LogicalSelection ls : selections) {
+            if (columnIndexes[ls.colNum] >= 0) {
+                indexSelections.add(ls);
+            } else {
+                nonIndexSelections.add(ls);
+            }
+        }
+
+        // Find group by
+        if (query.isAggregated && !query.isGrouped) {
+            plan.isGroupedByConstant = true;
+            query.isGrouped = true;
+        } else if (query.isGrouped) {
+            Expression[] groupExpressions = query.groupSet.groupExpressions;
+            for (Expression groupExpression : groupExpressions) {
+                plan.groupByExpressions.add(getGroupBy(groupExpression, tableSchema, cFunctions));
+
+                // A sliding window groups by the panes of one slide, and each window combines the panes it covers
+                if (groupExpression instanceof FunctionSQLInvoked function && function.getRoutineName().equals("SLIDING_BUCKET")) {
+                    Expression[] args = function.getNodes();
+                    if (groupExpressions.length > 1) {
+                        return new QueryPlan("A sliding window must be the only GROUP BY expression");
+                    }
+                    if (args[0].getType() != OpTypes.COLUMN || args[0].getColumnIndex() != 0) {
+                        return new QueryPlan("A sliding window must be on the key");
+                    }
+                    long size = getIntValue(args[1]), slide = getIntValue(args[2]);
+                    if (size < slide || size % slide != 0) {
+                        return new QueryPlan("The size of a sliding window must be a multiple of its slide");
+                    }
+                    if (size / slide > 256) {
+                        return new QueryPlan("A sliding window can be at most 256 slides long");
+                    }
+                    // A window as long as its slide is a tumbling window
+                    if (size > slide) {
+                        plan.windowSize = size;
+                        plan.windowSlide = slide;
+                    }
+                }
+            }
+
+            // Records arrive in key order, so only expressions that never decrease with the key keep their groups together.
+            // The other expressions are grouped in a hash table within each run of the ordered ones, sized from the number
+            // of distinct values in the statistics
+            List<Integer> hashKeys = plan.getGroupKeys(false);
+            long distinctGroups = 1;
+            for (int k : hashKeys) {
+                String colName = tableSchema.getColumn(plan.groupByExpressions.get(k).getCol()).name;
+                TableStatistics tableStatistics = statistics.get(rv.getTable().getName().name);
+                TableStatistics.ColumnStatistics columnStatistics = tableStatistics == null ? null : tableStatistics.getColumn(colName);
+                if (columnStatistics == null || columnStatistics.distinctValues == null || columnStatistics.distinctValues <= 0) {
+                    return new QueryPlan(String.format("Grouping by %s needs its distinctValues in the table statistics to size the hash table", colName));
+                }
+                distinctGroups *= columnStatistics.distinctValues;
+                if (distinctGroups > 1 << 24) {
+                    return new QueryPlan(hashKeys.size() == 1
+                            ? String.format("%s has too many distinct values to group in a hash table", colName)
+                            : "The GROUP BY expressions have too many distinct values to group in a hash table");
+                }
+            }
+
+            // Keep the table at most three quarters full so probing stays short
+            if (!hashKeys.isEmpty()) {
+                plan.groupTableSize = 2;
+                while (plan.groupTableSize < 2 * distinctGroups) plan.groupTableSize *= 2;
+                plan.maxGroups = plan.groupTableSize * 3 / 4;
+            }
+        }
+
+        // Only use the data index if it reads fewer pages than scanning
+        chooseAccessPath(plan, rv.getTable(), indexSelections, nonIndexSelections);
+
+        /*
+         * Parse index selections into iterator bounds
+         */
+        // Sort index selections by column number, so we have nice code
+        indexSelections.sort(Comparator.comparingInt(o -> o.colNum));
+
+        // Parse
+        for (LogicalSelection ls : indexSelections) {
+            boolean isKey = columnIndexes[ls.colNum] == 0;
+
+            // Determine if this is a min or max value
+            boolean skip = false;
+            boolean isMin = false, isMax = false;
+            switch (ls.type) {
+                case OpTypes.GREATER_EQUAL -> isMin = true;
+                case OpTypes.GREATER -> {
+                    ls.value++;
+                    isMin = true;
+                }
+                case OpTypes.SMALLER_EQUAL -> isMax = true;
+                case OpTypes.SMALLER -> {
+                    ls.value--;
+                    isMax = true;
+                }
+                case OpTypes.EQUAL -> isMin = isMax = true;
+                case OpTypes.NOT_EQUAL -> {
+                    nonIndexSelections.add(ls);
+                    skip = true;
+                }
+                case OpTypes.OR -> {
+                    // Only one column can have its ranges read by the iterator, the key comes first
+                    if (plan.iteratorRanges == null) {
+                        plan.iteratorRanges = new IteratorRanges(isKey, ls);
+                    } else {
+                        nonIndexSelections.add(ls);
+                    }
+                    skip = true;
+                }
+                default -> throw new RuntimeException("Unknown type");
+            }
+            if (skip) continue;
+
+            if (isMin) {
+                plan.iteratorBounds.add(new IteratorBound(isKey ? "minKey" : "minData", ls.colNum, ls.value));
+            }
+            if (isMax) {
+                plan.iteratorBounds.add(new IteratorBound(isKey ? "maxKey" : "maxData", ls.colNum, ls.value));
+            }
+        }
+
+        // Ranges of the data index are not read in key order, which would split up the groups, and a point lookup reads a single record
+        IteratorRanges ranges = plan.iteratorRanges;
+        if (ranges != null && ranges.minName.equals("minData") && (plan.isGrouped() && !plan.isGroupedByConstant || plan.isPointLookup())) {
+            nonIndexSelections.add(new LogicalSelection(ranges.colNum, ranges.ranges));
+            plan.iteratorRanges = null;
+        } else if (ranges != null) {
+            plan.accessPathComment.add("Reading " + ranges.ranges.size() + " ranges of " + tableSchema.getColumn(ranges.colNum).name + ", one after the other with the same iterator");
+        }
+
+        // Check the most selective columns first so later checks run on fewer records
+        sortBySelectivity(rv.getTable(), nonIndexSelections);
+
+        // Find the columns calculated by the aggregation
         if (query.isGrouped) {
-            ArrayList<String> aggFuncs = new ArrayList<>();
             ArrayList<Expression> usedColumns = new ArrayList<>();
             Schema newSchema = new Schema();
 
@@ -478,6 +1201,7 @@ public class SQLConverter implements Closeable {
 
                 // This is a logical expression. Extract the "column" from it since this is a value that needs to be calculated
                 if (hasHaving && j == array.length - 1) {
+                    columnExpression = havingComparison;
                     if (columnExpression.getLeftNode() instanceof ExpressionColumn)
                         columnExpression = columnExpression.getLeftNode();
                     else if (columnExpression.getRightNode() instanceof ExpressionColumn)
@@ -506,41 +1230,24 @@ public class SQLConverter implements Closeable {
                 // Handle aggregated columns
                 String colName = columnExpression.getAlias().replaceAll("\\s", "_");
                 if (isSupportedAggregate(columnExpression)) {
-                    String aggFuncName = null;
                     switch (type) {
                         case OpTypes.MAX, OpTypes.MIN -> {
                             int colNum = columnExpression.getLeftNode().getColumnIndex();
-                            int colSize = tableSchema.getColSize(colNum);
-                            if (colSize > 0) colSize *= -1;
-                            aggFuncName = (type == OpTypes.MAX ? "MAX" : "MIN") + colName;
-
-                            // Create aggregate function
-                            operatorCode.append(indent).append("embedDBAggregateFunc* ").append(aggFuncName).append(" = create").append(type == OpTypes.MAX ? "Max" : "Min").append("Aggregate(").append(colNum).append(", ").append(colSize).append(");\n");
-                            aggFuncs.add(aggFuncName);
-
-                            newSchema.addColumn(colName, -colSize);
+                            plan.aggregates.add(new AggregateColumn(type, colNum, i, colName));
+                            newSchema.addColumn(colName, tableSchema.getColSize(colNum));
                         }
                         case OpTypes.COUNT -> {
-                            aggFuncName = "counter" + i;
-                            operatorCode.append(indent).append("embedDBAggregateFunc* ").append(aggFuncName).append(" = createCountAggregate();\n");
-                            aggFuncs.add(aggFuncName);
-
+                            plan.aggregates.add(new AggregateColumn(type, -1, i, colName));
                             newSchema.addColumn(colName, 4);
                         }
                         case OpTypes.SUM -> {
                             int colNum = columnExpression.getLeftNode().getColumnIndex();
-                            aggFuncName = "sum" + i;
-                            operatorCode.append(indent).append("embedDBAggregateFunc* ").append(aggFuncName).append(" = createSumAggregate(").append(colNum).append(");\n");
-                            aggFuncs.add(aggFuncName);
-
+                            plan.aggregates.add(new AggregateColumn(type, colNum, i, colName));
                             newSchema.addColumn(colName, 8);
                         }
                         case OpTypes.AVG -> {
                             int colNum = columnExpression.getLeftNode().getColumnIndex();
-                            aggFuncName = "avg" + i;
-                            operatorCode.append(indent).append("embedDBAggregateFunc* ").append(aggFuncName).append(" = createAvgAggregate(").append(colNum).append(", 4);\n");
-                            aggFuncs.add(aggFuncName);
-
+                            plan.aggregates.add(new AggregateColumn(type, colNum, i, colName));
                             newSchema.addColumn(colName, 4, true);
 
                             // Make output schema use float
@@ -549,162 +1256,2633 @@ public class SQLConverter implements Closeable {
                                 outputColumn.dataType = "float";
                         }
                     }
-                    if (aggFuncName != null)
-                        localFreeVars.add(aggFuncName);
                 } else {
-                    // This has to be a non aggregated column, HSQL doesn't allow non-aggregated columns if they aren't in the GROUP BY, and we only allow one GROUP BY expression
-                    // Thus we need to create a custom aggregateFunction that will only have a compute function
-                    assert groupByExpression != null;  // Because will be set whenever query.isGrouped is true
-
-                    /* Build custom function */
-                    String functionName = "customAggregateFunc" + i;
-                    StringBuilder functionCode = new StringBuilder();
-                    functionCode.append("void ").append(functionName).append("(embedDBAggregateFunc* aggFunc, embedDBSchema* schema, void* recordBuffer, const void* lastRecord) {\n");
-                    String functionIndent = "    ";
-                    // Extract col value from lastRecord
+                    // This has to be a non aggregated column, HSQL doesn't allow non-aggregated columns if they aren't in the GROUP BY
+                    // Thus the value is the key of the matching GROUP BY expression for the group
+                    int groupNum = getGroupNum(query, columnExpression);
+                    if (groupNum < 0) {
+                        return new QueryPlan("Column " + colName + " must match a GROUP BY expression");
+                    }
+                    ArithmeticExpression groupByExpression = plan.groupByExpressions.get(groupNum);
                     int colNum = groupByExpression.getCol();
-                    String dataType = tableSchema.getColumn(colNum).dataType;
-                    int offset = tableSchema.getColOffset(colNum);
-                    functionCode.append(functionIndent).append(dataType).append(" lastValue = *((").append(dataType).append("*)((int8_t*)lastRecord + ").append(offset).append("));\n");
-                    functionCode.append(functionIndent).append(dataType).append(" calculatedValue = ").append(String.format(groupByExpression.toFormattedString(), "lastValue")).append(";\n");
-                    // memcpy value into record
-                    functionCode.append(functionIndent).append("memcpy((int8_t*)recordBuffer + getColOffsetFromSchema(schema, aggFunc->colNum), &calculatedValue, sizeof(").append(dataType).append("));\n");
-                    functionCode.append("}\n");
+                    plan.aggregates.add(new AggregateColumn(colNum, i, colName, groupNum));
+
+                    Schema.Column oldColumn = tableSchema.getColumn(colNum);
+                    newSchema.addColumn(colName, oldColumn.size, groupByExpression.isFloat());
+                }
+            }
+            plan.aggregateSchema = newSchema;
+
+            // Make sure the types of the output schema match
+            for (int i = 0; i < outputSchema.getNumCols(); i++) {
+                Schema.Column column = outputSchema.getColumn(i);
+                Schema.Column newColumn = newSchema.getColumn(column.name);
+                if (newColumn != null) {
+                    column.dataType = newColumn.dataType;
+                }
+            }
+        }
+
+        if (hasHaving) {
+            plan.hasHaving = true;
+            plan.havingColumnNum = havingColumnNum;
+        }
+
+        // Records are read in key order, so only an order on the key can be given, by reading the pages backwards for DESC.
+        // The key is unique, so any later ORDER BY expressions do not change the order
+        // Groups are output in the order of the GROUP BY expressions that increase with the key, in any order within them
+        SortAndSlice sortAndSlice = query.sortAndSlice;
+        if (sortAndSlice.hasOrder() && !plan.isGroupedByConstant) {
+            ExpressionOrderBy orderBy = (ExpressionOrderBy) sortAndSlice.getExpressionList().get(0);
+            Expression orderExpression = orderBy.getLeftNode();
+            if (plan.isGrouped()) {
+                for (int i = 0; i < sortAndSlice.getOrderLength(); i++) {
+                    ExpressionOrderBy groupOrderBy = (ExpressionOrderBy) sortAndSlice.getExpressionList().get(i);
+                    int groupNum = getGroupNum(query, groupOrderBy.getLeftNode());
+                    if (groupOrderBy.isDescending() || groupNum < 0 || !plan.isRunKey(groupNum)) {
+                        return new QueryPlan("A grouped query can only be ordered ascending by a GROUP BY expression that increases with the key");
+                    }
+                }
+            } else if (orderExpression.getType() != OpTypes.COLUMN || orderExpression.getColumnIndex() != 0) {
+                return new QueryPlan("ORDER BY is only supported on the key column");
+            } else {
+                plan.isDescending = orderBy.isDescending();
+            }
+        }
+
+        // Stop reading once LIMIT rows are output
+        if (sortAndSlice.hasLimit()) {
+            ExpressionOp limitCondition = sortAndSlice.getLimitCondition();
+            if (limitCondition.getLeftNode() != null && getIntValue(limitCondition.getLeftNode()) != 0) {
+                return new QueryPlan("OFFSET is not supported");
+            }
+            if (limitCondition.getRightNode() != null) {
+                plan.limit = getIntValue(limitCondition.getRightNode());
+                if (plan.limit == 0) plan.isEmpty = true;
+
+                // Aggregation without GROUP BY outputs one row, and HSQLDB adds a LIMIT 1 to MIN and MAX queries
+                if (plan.isGroupedByConstant && plan.limit > 0) plan.limit = -1;
+            }
+        }
+
+        return plan;
+    }
+
+    private OperatorReturn getOperatorCode(QueryPlan plan, OrderedHashMap<String, String> cFunctions) {
+        StringBuilder operatorCode = new StringBuilder();
+        ArrayList<String> freeVars = new ArrayList<>();
+        ArrayList<String> storageFields = new ArrayList<>();
+        boolean isStatic = allocationMode == AllocationMode.STATIC;
+        String indent = "";
+
+        Schema outputSchema = plan.outputSchema;
+        Schema tableSchema = plan.tableSchema;
+
+        // Create group function
+        if (plan.isGroupedByConstant) {
+            cFunctions.put("groupFunction", """
+                    int8_t groupFunction(const void* lastRecord, const void* record) {
+                        return 1;
+                    }
+                    """);
+        } else if (plan.getTumblingWindowWidth() > 0) {
+            // The group of a tumbling window is a range of keys, so a record is checked against the start of the window of
+            // the previous record and the GROUP BY expression is only computed when a window starts
+            long windowWidth = plan.getTumblingWindowWidth();
+            String dataType = tableSchema.getColumn(0).dataType;
+            int offset = tableSchema.getColOffset(0);
+            StringBuilder functionCode = new StringBuilder();
+            String functionIndent = "    ";
+            functionCode.append("int8_t hasGroupKey = 0;\n");
+            functionCode.append(dataType).append(" windowStart = 0;\n");
+            functionCode.append(getGroupKeyType(plan, 0)).append(" groupKey = 0;\n");
+            functionCode.append("\nint8_t groupFunction(const void* lastRecord, const void* record) {\n");
+            functionCode.append(functionIndent).append(dataType).append(" lastValue = *((").append(dataType).append("*)((int8_t*)lastRecord + ").append(offset).append("));\n");
+            functionCode.append(functionIndent).append(dataType).append(" value = *((").append(dataType).append("*)((int8_t*)record + ").append(offset).append("));\n");
+            functionCode.append(functionIndent).append("if (!hasGroupKey || lastValue - windowStart >= ").append(windowWidth).append(") {\n");
+            functionCode.append(functionIndent).append("    windowStart = lastValue - lastValue % ").append(windowWidth).append(";\n");
+            functionCode.append(functionIndent).append("    groupKey = ").append(getWindowGroupKey(plan, "lastValue", "windowStart")).append(";\n");
+            functionCode.append(functionIndent).append("    hasGroupKey = 1;\n");
+            functionCode.append(functionIndent).append("}\n");
+            functionCode.append(functionIndent).append("return value - windowStart < ").append(windowWidth).append(";\n");
+            functionCode.append("}\n");
+            cFunctions.put("groupFunction", functionCode.toString());
+        } else if (plan.isGrouped() && !plan.isHashGrouped()) {
+            // Cache the key of the current group with the column value it was computed from, so the expression is
+            // evaluated once per record. While the group continues, the cache moves on to the new record. When a record
+            // starts a new group the cache still holds the ended group for its compute function. Every expression grouped
+            // this way is on the key, so one column value keys the cache
+            StringBuilder functionCode = new StringBuilder();
+            String functionIndent = "    ";
+            Schema.Column column = tableSchema.getColumn(0);
+            String dataType = column.dataType;
+            int offset = tableSchema.getColOffset(0);
+            functionCode.append("int8_t hasGroupKey = 0;\n");
+            functionCode.append(dataType).append(" groupKeyValue = 0;\n");
+            for (int k = 0; k < plan.groupByExpressions.size(); k++) {
+                functionCode.append(getGroupKeyType(plan, k)).append(" ").append(getGroupKeyName(plan, "groupKey", k)).append(" = 0;\n");
+            }
+            functionCode.append("\nint8_t groupFunction(const void* lastRecord, const void* record) {\n");
+            functionCode.append(functionIndent).append(dataType).append(" lastValue = *((").append(dataType).append("*)((int8_t*)lastRecord + ").append(offset).append("));\n");
+            functionCode.append(functionIndent).append(dataType).append(" value = *((").append(dataType).append("*)((int8_t*)record + ").append(offset).append("));\n");
+            functionCode.append(functionIndent).append("if (!hasGroupKey || lastValue != groupKeyValue) {\n");
+            StringJoiner groupChanged = new StringJoiner(" || ");
+            for (int k = 0; k < plan.groupByExpressions.size(); k++) {
+                String formattedExpression = plan.groupByExpressions.get(k).toFormattedString();
+                String groupKeyName = getGroupKeyName(plan, "groupKey", k);
+                functionCode.append(functionIndent).append("    ").append(groupKeyName).append(" = ").append(String.format(formattedExpression, "lastValue")).append(";\n");
+                groupChanged.add(String.format(formattedExpression, "value") + " != " + groupKeyName);
+            }
+            functionCode.append(functionIndent).append("    groupKeyValue = lastValue;\n");
+            functionCode.append(functionIndent).append("    hasGroupKey = 1;\n");
+            functionCode.append(functionIndent).append("}\n");
+            functionCode.append(functionIndent).append("if (").append(groupChanged).append(") return 0;\n");
+            functionCode.append(functionIndent).append("groupKeyValue = value;\n");
+            functionCode.append(functionIndent).append("return 1;\n");
+            functionCode.append("}\n");
+            cFunctions.put("groupFunction", functionCode.toString());
+        }
+
+        // Add function header
+        if (isStatic) {
+            operatorCode.append(indent).append("embedDBOperator* createOperator(embedDBState* state, embedDBQueryStorage* storage) {\n");
+        } else {
+            operatorCode.append(indent).append("embedDBOperator* createOperator(embedDBState* state, void*** allocatedValues) {\n");
+        }
+        indent += "    ";
+
+        for (String line : plan.accessPathComment)
+            operatorCode.append(indent).append("// ").append(line).append("\n");
+
+        /*
+         * Parse index selections into an embedDBIterator
+         */
+        Map<String, String> boundPointers = new HashMap<>();
+        for (IteratorBound bound : plan.iteratorBounds) {
+            // Allocate memory for value and set value
+            String dataTypeString = tableSchema.getColumn(bound.colNum).dataType;
+            String pointer = appendOwnedValue(operatorCode, indent, dataTypeString, bound.name, String.valueOf(tableSchema.getColSize(bound.colNum)), String.valueOf(bound.value), freeVars, storageFields);
+            boundPointers.put(bound.name, pointer);
+        }
+
+        // The iterator starts on the first range, and the range scan operator moves it to the others
+        IteratorRanges ranges = plan.iteratorRanges;
+        if (ranges != null) {
+            cFunctions.put("rangeScan", getRangeScanFunction(ranges, tableSchema.getColumn(ranges.colNum).dataType));
+            boundPointers.put(ranges.minName, "&rangeMin[0]");
+            boundPointers.put(ranges.maxName, "&rangeMax[0]");
+        }
+
+        // Set up iterator
+        if (isStatic) {
+            storageFields.add("embedDBIterator it;");
+            operatorCode.append(indent).append("embedDBIterator* it = &storage->it;\n");
+        } else {
+            operatorCode.append(indent).append("embedDBIterator* it = (embedDBIterator*)malloc(sizeof(embedDBIterator));\n");
+            footprint.add("it", Footprint.ITERATOR_SIZE);
+            freeVars.add("it");
+        }
+        for (String boundName : new String[]{"minKey", "maxKey", "minData", "maxData"}) {
+            if (boundPointers.containsKey(boundName)) {
+                operatorCode.append(indent).append("it->").append(boundName).append(" = ").append(boundPointers.get(boundName)).append(";\n");
+            } else {
+                operatorCode.append(indent).append("it->").append(boundName).append(" = NULL;\n");
+            }
+        }
+        operatorCode.append(indent).append("embedDBInitIterator(state, it);\n\n");
+
+        /*
+         * Parse non-index selections into embedDBOperators
+         */
+        String topLevelOperator;
+
+        // Create schema struct
+        operatorCode.append(indent).append("uint8_t numCols = ").append(tableSchema.getNumCols()).append(";\n");
+        operatorCode.append(indent).append("int8_t colSizes[] = {");
+        tableSchema.forEach(column -> operatorCode.append(column.size).append(", "));
+        operatorCode.delete(operatorCode.length() - 2, operatorCode.length());  // Remove last comma
+        operatorCode.append("};\n");
+        operatorCode.append(indent).append("int8_t colSignedness[] = {");
+        for (int j = 0; j < tableSchema.getNumCols(); j++) {
+            if (j == 0) {
+                operatorCode.append("embedDB_COLUMN_UNSIGNED");
+            } else {
+                operatorCode.append("embedDB_COLUMN_SIGNED");
+            }
+            if (j < tableSchema.getNumCols() - 1) {
+                operatorCode.append(", ");
+            }
+        }
+        operatorCode.append("};\n");
+        operatorCode.append(indent).append("embedDBSchema* schema = embedDBCreateSchema(numCols, colSizes, colSignedness);\n");
+
+        // Create table scan operator
+        operatorCode.append(indent).append("embedDBOperator* scanOp = createTableScanOperator(state, it, schema);\n");
+        footprint.addOperator("scanOp", 2 * Footprint.POINTER_SIZE, tableSchema.getNumCols(), tableSchema.getRecordSize());
+        topLevelOperator = "scanOp";
+
+        if (ranges != null) {
+            putCompiledOperatorFunctions(cFunctions);
+            appendOwnedStruct(operatorCode, indent, "rangeScanState", "scanState", false, storageFields);
+            operatorCode.append(indent).append("scanState->state = state;\n");
+            operatorCode.append(indent).append("scanState->it = it;\n");
+            operatorCode.append(indent).append("scanState->range = 0;\n");
+            appendOwnedStruct(operatorCode, indent, "embedDBOperator", "rangeScanOp", true, storageFields);
+            operatorCode.append(indent).append("rangeScanOp->input = scanOp;\n");
+            operatorCode.append(indent).append("rangeScanOp->state = scanState;\n");
+            operatorCode.append(indent).append("rangeScanOp->init = initCompiledSelection;\n");
+            operatorCode.append(indent).append("rangeScanOp->next = nextRangeScan;\n");
+            operatorCode.append(indent).append("rangeScanOp->close = closeCompiledSelection;\n");
+            if (!isStatic) footprint.add("rangeScanOp", Footprint.OPERATOR_SIZE + 3 * Footprint.POINTER_SIZE);
+            topLevelOperator = "rangeScanOp";
+        } else if (plan.isZoneMapScan()) {
+            // The zone map scan reads the pages itself, and only takes the schema and record buffer of the table scan
+            putCompiledOperatorFunctions(cFunctions);
+            cFunctions.put("zoneMapScan", getZoneMapScanFunction(plan));
+            appendOwnedStruct(operatorCode, indent, "zoneMapScanState", "scanState", true, storageFields);
+            operatorCode.append(indent).append("scanState->state = state;\n");
+            operatorCode.append(indent).append("scanState->pageId = state->minDataPageId;\n");
+            appendOwnedStruct(operatorCode, indent, "embedDBOperator", "zoneMapScanOp", true, storageFields);
+            operatorCode.append(indent).append("zoneMapScanOp->input = scanOp;\n");
+            operatorCode.append(indent).append("zoneMapScanOp->state = scanState;\n");
+            operatorCode.append(indent).append("zoneMapScanOp->init = initCompiledSelection;\n");
+            operatorCode.append(indent).append("zoneMapScanOp->next = nextZoneMapScan;\n");
+            operatorCode.append(indent).append("zoneMapScanOp->close = closeCompiledSelection;\n");
+            if (!isStatic) footprint.add("zoneMapScanOp", Footprint.OPERATOR_SIZE + 5 * Footprint.POINTER_SIZE);
+            topLevelOperator = "zoneMapScanOp";
+        }
+
+        // Turn each condition into a selection operator
+        for (List<LogicalSelection> columnSelections : groupSelectionsByColumn(plan.nonIndexSelections).values()) {
+            // Check all conditions on a column in one compiled operator, as the selection operator only does one comparison
+            if (columnSelections.size() > 1 || columnSelections.get(0).type == OpTypes.OR) {
+                int colNum = columnSelections.get(0).colNum;
+                Schema.Column column = tableSchema.getColumn(colNum);
+                String selectionVariableName = "selectRange" + column.name;
+                String functionName = "nextSelectRange" + column.name;
+
+                putCompiledOperatorFunctions(cFunctions);
+
+                StringBuilder functionCode = new StringBuilder();
+                functionCode.append("int8_t ").append(functionName).append("(embedDBOperator* op) {\n");
+                functionCode.append("    while (exec(op->input)) {\n");
+                functionCode.append("        ").append(column.dataType).append(" ").append(column.name).append(" = *((").append(column.dataType).append("*)((int8_t*)op->recordBuffer + ").append(tableSchema.getColOffset(colNum)).append("));\n");
+                functionCode.append("        if (").append(getColumnCondition(columnSelections, column.name)).append(") return 1;\n");
+                functionCode.append("    }\n");
+                functionCode.append("    return 0;\n");
+                functionCode.append("}\n");
+                cFunctions.put(functionName, functionCode.toString());
+
+                appendOwnedStruct(operatorCode, indent, "embedDBOperator", selectionVariableName, true, storageFields);
+                operatorCode.append(indent).append(selectionVariableName).append("->input = ").append(topLevelOperator).append(";\n");
+                operatorCode.append(indent).append(selectionVariableName).append("->init = initCompiledSelection;\n");
+                operatorCode.append(indent).append(selectionVariableName).append("->next = ").append(functionName).append(";\n");
+                operatorCode.append(indent).append(selectionVariableName).append("->close = closeCompiledSelection;\n");
+                if (!isStatic) footprint.add(selectionVariableName, Footprint.OPERATOR_SIZE);
+                topLevelOperator = selectionVariableName;
+                continue;
+            }
+
+            LogicalSelection ls = columnSelections.get(0);
+            String type = getSelectionType(ls.type);
+            Schema.Column column = tableSchema.getColumn(ls.colNum);
+            String colName = column.name;
+            String colNameWithType = type.substring(7) + colName;
+            String selectionVariableName = "select" + colNameWithType;
+            String dataType = column.dataType;
+
+            String valueVariableName = "selVal" + colNameWithType;
+
+            // Allocate memory for value and set value
+            String pointer = appendOwnedValue(operatorCode, indent, dataType, valueVariableName, String.valueOf(column.size), String.valueOf(ls.value), freeVars, storageFields);
+
+            // Create operator
+            operatorCode.append(indent).append("embedDBOperator* ").append(selectionVariableName).append(" = createSelectionOperator(").append(topLevelOperator).append(", ").append(ls.colNum).append(", ").append(type).append(", ").append(pointer).append(");\n");
+            footprint.addOperator(selectionVariableName, 2 * Footprint.POINTER_SIZE, tableSchema.getNumCols(), tableSchema.getRecordSize());
+            topLevelOperator = selectionVariableName;
+        }
+
+        // The comparisons of expressions are checked together by the predicate function
+        if (!plan.expressionSelections.isEmpty()) {
+            putCompiledOperatorFunctions(cFunctions);
+            StringBuilder functionCode = new StringBuilder();
+            functionCode.append("int8_t nextSelectPredicate(embedDBOperator* op) {\n");
+            functionCode.append("    while (exec(op->input)) {\n");
+            functionCode.append("        if (wherePredicate((int8_t*)op->recordBuffer)) return 1;\n");
+            functionCode.append("    }\n");
+            functionCode.append("    return 0;\n");
+            functionCode.append("}\n");
+            cFunctions.put("nextSelectPredicate", functionCode.toString());
+
+            appendOwnedStruct(operatorCode, indent, "embedDBOperator", "selectPredicate", true, storageFields);
+            operatorCode.append(indent).append("selectPredicate->input = ").append(topLevelOperator).append(";\n");
+            operatorCode.append(indent).append("selectPredicate->init = initCompiledSelection;\n");
+            operatorCode.append(indent).append("selectPredicate->next = nextSelectPredicate;\n");
+            operatorCode.append(indent).append("selectPredicate->close = closeCompiledSelection;\n");
+            if (!isStatic) footprint.add("selectPredicate", Footprint.OPERATOR_SIZE);
+            topLevelOperator = "selectPredicate";
+        }
+
+        // The aggregate operator copies each record it reads, so only pass on the columns it uses
+        if (plan.isGrouped() && !plan.isHashGrouped()) {
+            List<Integer> usedColumns = new ArrayList<>(new TreeSet<>(getUsedColumns(plan, List.of())));
+            if (usedColumns.isEmpty()) usedColumns.add(0);
+            if (usedColumns.size() < tableSchema.getNumCols()) {
+                StringJoiner cols = new StringJoiner(", ");
+                usedColumns.forEach(colNum -> cols.add(String.valueOf(colNum)));
+                operatorCode.append(indent).append("uint8_t projCols[] = {").append(cols).append("};\n");
+                operatorCode.append(indent).append("embedDBOperator* projOp = createProjectionOperator(").append(topLevelOperator).append(", ").append(usedColumns.size()).append(", projCols);\n");
+                topLevelOperator = "projOp";
+                tableSchema = tableSchema.project(usedColumns);
+                footprint.addOperator("projOp", 2 * Footprint.POINTER_SIZE + usedColumns.size(), usedColumns.size(), tableSchema.getRecordSize());
+            }
+        }
+
+        // Create group by operator
+        if (plan.isHashGrouped()) {
+            cFunctions.put(plan.getSymbol("groupTable"), getGroupTableCode(plan));
+            cFunctions.put("hashAggregate", getHashAggregateFunctions(plan));
+            appendOwnedStruct(operatorCode, indent, "embedDBOperator", "aggOp", true, storageFields);
+            operatorCode.append(indent).append("aggOp->input = ").append(topLevelOperator).append(";\n");
+            operatorCode.append(indent).append("aggOp->init = initHashAggregate;\n");
+            operatorCode.append(indent).append("aggOp->next = nextHashAggregate;\n");
+            operatorCode.append(indent).append("aggOp->close = closeHashAggregate;\n");
+            if (!isStatic) footprint.add("aggOp", Footprint.OPERATOR_SIZE + Footprint.SCHEMA_SIZE + 2 * plan.aggregates.size());
+            topLevelOperator = "aggOp";
+            tableSchema = plan.aggregateSchema;
+        } else if (plan.isGrouped()) {
+            // Each aggregate gets its own functions with the column type and offsets known at compile time
+            ArrayList<String> aggFuncs = new ArrayList<>();
+            for (int j = 0; j < plan.aggregates.size(); j++) {
+                AggregateColumn agg = plan.aggregates.get(j);
+                if (agg.isGroupColumn()) {
+                    // Create a custom aggregateFunction that will only have a compute function
+                    /* Build custom function */
+                    String functionName = "customAggregateFunc" + agg.exprIndex;
+                    StringBuilder functionCode = new StringBuilder();
+                    functionCode.append("void ").append(functionName).append("(embedDBAggregateFunc* aggFunc, embedDBSchema* schema, void* recordBuffer, const void* lastRecord) {\n");
+                    String functionIndent = "    ";
+                    // Extract col value from lastRecord
+                    String dataType = tableSchema.getColumn(agg.colNum).dataType;
+                    int offset = tableSchema.getColOffset(agg.colNum);
+                    functionCode.append(functionIndent).append(dataType).append(" lastValue = *((").append(dataType).append("*)((int8_t*)lastRecord + ").append(offset).append("));\n");
+                    String formattedExpression = plan.groupByExpressions.get(agg.groupNum).toFormattedString();
+                    String isCached = plan.getTumblingWindowWidth() > 0 ? "lastValue - windowStart < " + plan.getTumblingWindowWidth() : "lastValue == groupKeyValue";
+                    functionCode.append(functionIndent).append(dataType).append(" calculatedValue = hasGroupKey && ").append(isCached).append(" ? ").append(getGroupKeyName(plan, "groupKey", agg.groupNum)).append(" : ").append(String.format(formattedExpression, "lastValue")).append(";\n");
+                    // memcpy value into record
+                    functionCode.append(functionIndent).append("memcpy((int8_t*)recordBuffer + getColOffsetFromSchema(schema, aggFunc->colNum), &calculatedValue, sizeof(").append(dataType).append("));\n");
+                    functionCode.append("}\n");
+
+                    cFunctions.put(functionName, functionCode.toString());
+                    aggFuncs.add("{.compute = " + functionName + ", .colSize = " + getAggregateColSize(plan, j) + "}");
+                    continue;
+                }
+
+                cFunctions.put("aggregate" + j, getAggregateFunctions(plan, j, tableSchema));
+                aggFuncs.add("{.reset = resetAgg" + j + ", .add = addAgg" + j + ", .compute = computeAgg" + j + ", .colSize = " + getAggregateColSize(plan, j) + "}");
+            }
+
+            // Create aggregate operator
+            if (isStatic) {
+                storageFields.add("embedDBAggregateFunc aggFuncs[" + aggFuncs.size() + "];");
+                operatorCode.append(indent).append("embedDBAggregateFunc* aggFuncs = storage->aggFuncs;\n");
+            } else {
+                operatorCode.append(indent).append("embedDBAggregateFunc* aggFuncs = (embedDBAggregateFunc*)malloc(").append(aggFuncs.size()).append("*sizeof(embedDBAggregateFunc));\n");
+                footprint.add("aggFuncs", aggFuncs.size() * Footprint.AGGREGATE_FUNC_SIZE);
+                freeVars.add("aggFuncs");
+            }
+            for (int i = 0; i < aggFuncs.size(); i++) {
+                operatorCode.append(indent).append("aggFuncs[").append(i).append("] = (embedDBAggregateFunc)").append(aggFuncs.get(i)).append(";\n");
+            }
+            operatorCode.append(indent).append("embedDBOperator* aggOp = createAggregateOperator(").append(topLevelOperator).append(", groupFunction, aggFuncs, ").append(aggFuncs.size()).append(");\n");
+            // The aggregate operator keeps a copy of the last record of its input
+            footprint.addOperator("aggOp", 5 * Footprint.POINTER_SIZE + tableSchema.getRecordSize(), plan.aggregateSchema.getNumCols(), plan.aggregateSchema.getRecordSize());
+            topLevelOperator = "aggOp";
+
+            // Update schema since the aggregate operator completely redefines it
+            tableSchema = plan.aggregateSchema;
+        }
+
+        // Apply selection for HAVING
+        if (plan.hasHaving) {
+            // Allocate value
+            String valueVariableName = "havingValue";
+            String dataType = tableSchema.getColumn(plan.havingColumnNum).dataType;
+            String pointer = appendOwnedValue(operatorCode, indent, dataType, valueVariableName, "sizeof(" + dataType + ")", String.valueOf(plan.havingValue), freeVars, storageFields);
+
+            // Create selection operator
+            String type = getSelectionType(plan.havingType);
+            operatorCode.append(indent).append("embedDBOperator* havingOp = createSelectionOperator(").append(topLevelOperator).append(", ").append(plan.havingColumnNum).append(", ").append(type).append(", ").append(pointer).append(");\n");
+            footprint.addOperator("havingOp", 2 * Footprint.POINTER_SIZE, tableSchema.getNumCols(), tableSchema.getRecordSize());
+            topLevelOperator = "havingOp";
+        }
+
+        // Init top level operator
+        operatorCode.append(indent).append(topLevelOperator).append("->init(").append(topLevelOperator).append(");\n\n");
+
+        // Free schema
+        operatorCode.append(indent).append("embedDBFreeSchema(&schema);\n");
+
+        operatorCode.append('\n');
+
+        // Allocate array for vars that must be freed
+        if (!isStatic) {
+            operatorCode.append(indent).append("*allocatedValues = (void**)malloc(").append(freeVars.size()).append(" * sizeof(void*));\n");
+            footprint.add("allocatedValues", freeVars.size() * Footprint.POINTER_SIZE);
+            for (int i = 0; i < freeVars.size(); i++) {
+                operatorCode.append(indent).append("((void**)*allocatedValues)[").append(i).append("] = ").append(freeVars.get(i)).append(";\n");
+            }
+            operatorCode.append("\n");
+        }
+
+        // Return operator
+        operatorCode.append(indent).append("return ").append(topLevelOperator).append(";\n");
+
+        // Close function
+        //noinspection ConstantValue
+        indent = indent.substring(0, indent.length() - 4);
+        operatorCode.append(indent).append("}\n");
+
+        boolean hasStorageOperators = storageFields.stream().anyMatch(field -> field.startsWith("embedDBOperator "));
+        if (isStatic && hasStorageOperators) {
+            operatorCode.insert(0, getFreeStorageOperatorFunction() + "\n");
+        }
+        prependStorageStruct(operatorCode, storageFields);
+
+        // Return iterator code with other info
+        OperatorReturn r = new OperatorReturn(operatorCode, outputSchema, tableSchema, freeVars.size());
+        r.hasStorageOperators = hasStorageOperators;
+        return r;
+    }
+
+    /**
+     * Init and close functions for a generated operator that passes on the records of its input in the same buffer
+     */
+    private void putCompiledOperatorFunctions(OrderedHashMap<String, String> cFunctions) {
+        cFunctions.put("initCompiledSelection", """
+                void initCompiledSelection(embedDBOperator* op) {
+                    op->input->init(op->input);
+                    op->schema = op->input->schema;
+                    op->recordBuffer = op->input->recordBuffer;
+                }
+                """);
+        cFunctions.put("closeCompiledSelection", """
+                void closeCompiledSelection(embedDBOperator* op) {
+                    op->input->close(op->input);
+                    op->schema = NULL;
+                    op->recordBuffer = NULL;
+                }
+                """);
+    }
+
+    /**
+     * Size of an aggregate in the output record of the aggregate operator, negative for a signed column
+     */
+    private int getAggregateColSize(QueryPlan plan, int aggregateNum) {
+        AggregateColumn agg = plan.aggregates.get(aggregateNum);
+        return switch (agg.type) {
+            case OpTypes.COLUMN -> plan.tableSchema.getColSize(agg.colNum);
+            case OpTypes.MAX, OpTypes.MIN -> -plan.tableSchema.getColSize(agg.colNum);
+            case OpTypes.COUNT -> -4;
+            case OpTypes.SUM -> -8;
+            default -> 4;
+        };
+    }
+
+    /**
+     * State and reset, add and compute functions for one aggregate of the aggregate operator.
+     * The state is a global of the aggregate's type instead of a malloc'd struct, and the column is read at a constant offset
+     */
+    private String getAggregateFunctions(QueryPlan plan, int aggregateNum, Schema tableSchema) {
+        AggregateColumn agg = plan.aggregates.get(aggregateNum);
+        String name = "agg" + aggregateNum;
+        String dataType = agg.colNum >= 0 ? tableSchema.getColumn(agg.colNum).dataType : null;
+        String value = agg.colNum >= 0 ? "*((" + dataType + "*)((int8_t*)recordBuffer + " + tableSchema.getColOffset(agg.colNum) + "))" : null;
+        String indent = "    ";
+
+        StringBuilder state = new StringBuilder();
+        StringBuilder reset = new StringBuilder();
+        StringBuilder add = new StringBuilder();
+        String result = name;
+        String resultType;
+        switch (agg.type) {
+            case OpTypes.MIN, OpTypes.MAX -> {
+                boolean isMin = agg.type == OpTypes.MIN;
+                resultType = dataType;
+                state.append(dataType).append(" ").append(name).append(" = 0;\n");
+                reset.append(indent).append(name).append(" = ").append(getBoundLiteral(isMin ? Long.MAX_VALUE : Long.MIN_VALUE, dataType)).append(";\n");
+                add.append(indent).append(dataType).append(" value = ").append(value).append(";\n");
+                add.append(indent).append("if (value ").append(isMin ? "<" : ">").append(" ").append(name).append(") ").append(name).append(" = value;\n");
+            }
+            case OpTypes.COUNT -> {
+                resultType = "int32_t";
+                state.append("int32_t ").append(name).append(" = 0;\n");
+                reset.append(indent).append(name).append(" = 0;\n");
+                add.append(indent).append(name).append("++;\n");
+            }
+            case OpTypes.SUM -> {
+                resultType = "int64_t";
+                state.append("int64_t ").append(name).append(" = 0;\n");
+                reset.append(indent).append(name).append(" = 0;\n");
+                add.append(indent).append(name).append(" += ").append(value).append(";\n");
+            }
+            default -> {
+                resultType = "float";
+                result = "(float)" + name + "Sum / " + name + "Count";
+                state.append("int64_t ").append(name).append("Sum = 0;\n");
+                state.append("uint32_t ").append(name).append("Count = 0;\n");
+                reset.append(indent).append(name).append("Sum = 0;\n");
+                reset.append(indent).append(name).append("Count = 0;\n");
+                add.append(indent).append(name).append("Sum += ").append(value).append(";\n");
+                add.append(indent).append(name).append("Count++;\n");
+            }
+        }
+
+        StringBuilder code = new StringBuilder(state);
+        code.append("\nvoid resetAgg").append(aggregateNum).append("(embedDBAggregateFunc* aggFunc, embedDBSchema* inputSchema) {\n");
+        code.append(reset).append("}\n");
+        code.append("\nvoid addAgg").append(aggregateNum).append("(embedDBAggregateFunc* aggFunc, embedDBSchema* inputSchema, const void* recordBuffer) {\n");
+        code.append(add).append("}\n");
+        code.append("\nvoid computeAgg").append(aggregateNum).append("(embedDBAggregateFunc* aggFunc, embedDBSchema* outputSchema, void* recordBuffer, const void* lastRecord) {\n");
+        code.append(indent).append(resultType).append(" result = ").append(result).append(";\n");
+        code.append(indent).append("memcpy((int8_t*)recordBuffer + ").append(plan.aggregateSchema.getColOffset(aggregateNum)).append(", &result, sizeof(").append(resultType).append("));\n");
+        code.append("}\n");
+        return code.toString();
+    }
+
+    /**
+     * The bounds of each range, and a next function that moves the iterator of the table scan to the next range once
+     * the current one has no more records
+     */
+    private String getRangeScanFunction(IteratorRanges ranges, String dataType) {
+        StringBuilder code = new StringBuilder();
+        appendRangeArrays(code, "", ranges, dataType);
+        code.append("\n");
+        code.append("typedef struct {\n");
+        code.append("    embedDBState* state;\n");
+        code.append("    embedDBIterator* it;\n");
+        code.append("    uint32_t range;\n");
+        code.append("} rangeScanState;\n\n");
+        code.append("int8_t nextRangeScan(embedDBOperator* op) {\n");
+        code.append("    rangeScanState* scan = (rangeScanState*)op->state;\n");
+        code.append("    while (!exec(op->input)) {\n");
+        code.append("        if (++scan->range >= ").append(ranges.ranges.size()).append(") return 0;\n");
+        code.append("        embedDBCloseIterator(scan->it);\n");
+        code.append("        scan->it->").append(ranges.minName).append(" = &rangeMin[scan->range];\n");
+        code.append("        scan->it->").append(ranges.maxName).append(" = &rangeMax[scan->range];\n");
+        code.append("        embedDBInitIterator(scan->state, scan->it);\n");
+        code.append("    }\n");
+        code.append("    return 1;\n");
+        code.append("}\n");
+        return code.toString();
+    }
+
+    /**
+     * A next function that reads the pages of the table in key order and passes on the records of each page its zone
+     * maps do not rule out
+     */
+    private String getZoneMapScanFunction(QueryPlan plan) {
+        StringBuilder code = new StringBuilder();
+        code.append("typedef struct {\n");
+        code.append("    embedDBState* state;\n");
+        code.append("    int8_t* page;\n");
+        code.append("    uint32_t pageId;\n");
+        code.append("    uint32_t count;\n");
+        code.append("    uint32_t next;\n");
+        code.append("} zoneMapScanState;\n\n");
+        code.append("int8_t nextZoneMapScan(embedDBOperator* op) {\n");
+        code.append("    zoneMapScanState* scan = (zoneMapScanState*)op->state;\n");
+        code.append("    embedDBState* state = scan->state;\n");
+        code.append("    while (scan->next >= scan->count) {\n");
+        code.append("        if (scan->pageId > state->nextDataPageId) return 0;\n");
+        code.append("        uint32_t pageId = scan->pageId++;\n");
+        appendPageRead(code, "        ", "return 0");
+        code.append("        scan->page = page;\n");
+        code.append("        scan->count = 0;\n");
+        code.append("        scan->next = 0;\n");
+        appendZoneMapCheck(code, "        ", plan, "continue", "return 0");
+        code.append("        scan->count = count;\n");
+        code.append("    }\n");
+        code.append("    memcpy(op->recordBuffer, scan->page + state->headerSize + scan->next++ * state->recordSize, ").append(plan.tableSchema.getRecordSize()).append(");\n");
+        code.append("    return 1;\n");
+        code.append("}\n");
+        return code.toString();
+    }
+
+    private void appendRangeArrays(StringBuilder code, String indent, IteratorRanges ranges, String dataType) {
+        StringJoiner min = new StringJoiner(", "), max = new StringJoiner(", ");
+        for (long[] range : ranges.ranges) {
+            min.add(getBoundLiteral(range[0], dataType));
+            max.add(getBoundLiteral(range[1], dataType));
+        }
+        code.append(indent).append(dataType).append(" rangeMin[] = {").append(min).append("};\n");
+        code.append(indent).append(dataType).append(" rangeMax[] = {").append(max).append("};\n");
+    }
+
+    /**
+     * C literal for a range bound, using the limits of the type for an unbounded side
+     */
+    private String getBoundLiteral(long value, String dataType) {
+        boolean isUnsigned = dataType.startsWith("u");
+        String bits = dataType.contains("64") ? "64" : "32";
+        long typeMin = isUnsigned ? 0 : bits.equals("64") ? Long.MIN_VALUE : Integer.MIN_VALUE;
+        long typeMax = bits.equals("64") ? Long.MAX_VALUE : isUnsigned ? 0xFFFFFFFFL : Integer.MAX_VALUE;
+        if (value <= typeMin) return isUnsigned ? "0" : "INT" + bits + "_MIN";
+        if (value >= typeMax) return (isUnsigned ? "UINT" : "INT") + bits + "_MAX";
+        return String.valueOf(value);
+    }
+
+    /**
+     * Emits a value owned by the generated code and returns an expression that points to it.
+     * With heap allocation the value is malloc'd and added to freeVars, otherwise it becomes a field of the storage struct.
+     */
+    private String appendOwnedValue(StringBuilder code, String indent, String dataType, String name, String size, String value, ArrayList<String> freeVars, ArrayList<String> storageFields) {
+        if (allocationMode == AllocationMode.STATIC) {
+            storageFields.add(dataType + " " + name + ";");
+            code.append(indent).append("storage->").append(name).append(" = ").append(value).append(";\n");
+            return "&storage->" + name;
+        }
+
+        code.append(indent).append(dataType).append("* ").append(name).append(" = (").append(dataType).append("*)malloc(").append(size).append(");\n");
+        footprint.add(name, getTypeSize(dataType));
+        freeVars.add(name);
+        code.append(indent).append("*").append(name).append(" = ").append(value).append(";\n");
+        return name;
+    }
+
+    /**
+     * Emits a struct owned by the generated code, zeroed if asked, as a pointer with the given name.
+     * With heap allocation the struct is allocated and freed with the operator that holds it, otherwise it becomes a field of the storage struct.
+     */
+    private void appendOwnedStruct(StringBuilder code, String indent, String type, String name, boolean isZeroed, ArrayList<String> storageFields) {
+        if (allocationMode == AllocationMode.STATIC) {
+            storageFields.add(type + " " + name + ";");
+            code.append(indent).append(type).append("* ").append(name).append(" = &storage->").append(name).append(";\n");
+            if (isZeroed) code.append(indent).append("memset(").append(name).append(", 0, sizeof(").append(type).append("));\n");
+        } else if (isZeroed) {
+            code.append(indent).append(type).append("* ").append(name).append(" = (").append(type).append("*)calloc(1, sizeof(").append(type).append("));\n");
+        } else {
+            code.append(indent).append(type).append("* ").append(name).append(" = (").append(type).append("*)malloc(sizeof(").append(type).append("));\n");
+        }
+    }
+
+    /**
+     * Frees the operators that EmbedDB allocated, and skips the ones in the storage struct along with their state
+     */
+    private String getFreeStorageOperatorFunction() {
+        return """
+                void freeStorageOperator(embedDBOperator** op, embedDBQueryStorage* storage) {
+                    if (*op == NULL) return;
+                    embedDBOperator* input = (*op)->input;
+                    if ((int8_t*)*op >= (int8_t*)storage && (int8_t*)*op < (int8_t*)(storage + 1)) {
+                        *op = NULL;
+                    } else {
+                        (*op)->input = NULL;
+                        embedDBFreeOperatorRecursive(op);
+                    }
+                    freeStorageOperator(&input, storage);
+                }
+                """;
+    }
+
+    /**
+     * Declares the storage struct with static allocation, before the function that uses it
+     */
+    private void prependStorageStruct(StringBuilder code, List<String> storageFields) {
+        if (allocationMode != AllocationMode.STATIC) return;
+        StringBuilder struct = new StringBuilder();
+        struct.append("typedef struct {\n");
+        for (String field : storageFields)
+            struct.append("    ").append(field).append("\n");
+        struct.append("} embedDBQueryStorage;\n\n");
+        code.insert(0, struct);
+    }
+
+    private StringBuilder getEmptyResultCode(QueryPlan plan) {
+        StringBuilder code = new StringBuilder();
+        code.append("void execOperator(embedDBState* state) {\n");
+        code.append("    // The query can never return a row, so no records are read\n");
+        appendOutputEnd(code, "    ", plan);
+        code.append("}\n");
+        return code;
+    }
+
+    /**
+     * C condition that is true when all the selections on one column hold for the variable varName
+     */
+    private String getColumnCondition(List<LogicalSelection> columnSelections, String varName) {
+        StringJoiner condition = new StringJoiner(" && ");
+        for (LogicalSelection ls : columnSelections) {
+            if (ls.type == OpTypes.OR) {
+                StringJoiner anyRange = columnSelections.size() > 1 ? new StringJoiner(" || ", "(", ")") : new StringJoiner(" || ");
+                for (long[] range : ls.ranges) {
+                    List<LogicalSelection> rangeSelections = LogicalSelection.forRange(ls.colNum, range);
+                    String rangeCondition = getColumnCondition(rangeSelections, varName);
+                    anyRange.add(rangeSelections.size() > 1 ? "(" + rangeCondition + ")" : rangeCondition);
+                }
+                condition.add(anyRange.toString());
+            } else {
+                condition.add(varName + " " + getComparisonOperator(ls.type) + " " + ls.value);
+            }
+        }
+        return condition.toString();
+    }
+
+    private LinkedHashMap<Integer, List<LogicalSelection>> groupSelectionsByColumn(List<LogicalSelection> selections) {
+        LinkedHashMap<Integer, List<LogicalSelection>> byColumn = new LinkedHashMap<>();
+        for (LogicalSelection ls : selections)
+            byColumn.computeIfAbsent(ls.colNum, k -> new ArrayList<>()).add(ls);
+        return byColumn;
+    }
+
+    /**
+     * Collapses the selections on each column into at most one lower bound, one upper bound, and the != values that
+     * fall strictly inside them. A column whose bounds are equal gets a single = selection. Bounds that every value of
+     * the column's C type passes are left out.
+     * Returns null if the range of any column is empty, so the query can never return a record.
+     */
+    private ArrayList<LogicalSelection> mergeSelections(List<LogicalSelection> selections, Schema tableSchema) {
+        ArrayList<LogicalSelection> merged = new ArrayList<>();
+        for (List<LogicalSelection> columnSelections : groupSelectionsByColumn(selections).values()) {
+            int colNum = columnSelections.get(0).colNum;
+            long[] typeRange = getTypeRange(tableSchema.getColumn(colNum).dataType);
+            LogicalSelection lower = null, upper = null;
+            TreeSet<Long> notEqual = new TreeSet<>();
+            List<long[]> ranges = null;
+
+            // Keep the tightest bound on each side
+            for (LogicalSelection ls : columnSelections) {
+                switch (ls.type) {
+                    case OpTypes.GREATER, OpTypes.GREATER_EQUAL -> {
+                        if (lower == null || ls.getMin() > lower.getMin()) lower = ls;
+                    }
+                    case OpTypes.SMALLER, OpTypes.SMALLER_EQUAL -> {
+                        if (upper == null || ls.getMax() < upper.getMax()) upper = ls;
+                    }
+                    case OpTypes.EQUAL -> {
+                        if (lower == null || ls.value > lower.getMin()) lower = new LogicalSelection(colNum, OpTypes.GREATER_EQUAL, ls.value);
+                        if (upper == null || ls.value < upper.getMax()) upper = new LogicalSelection(colNum, OpTypes.SMALLER_EQUAL, ls.value);
+                    }
+                    case OpTypes.NOT_EQUAL -> notEqual.add(ls.value);
+                    case OpTypes.OR -> ranges = ranges == null ? ls.ranges : intersectRanges(ranges, ls.ranges);
+                    default -> throw new RuntimeException("Unknown type");
+                }
+            }
+
+            // The values of the column are within the range of its type
+            if (lower == null || lower.getMin() < typeRange[0]) lower = new LogicalSelection(colNum, OpTypes.GREATER_EQUAL, typeRange[0]);
+            if (upper == null || upper.getMax() > typeRange[1]) upper = new LogicalSelection(colNum, OpTypes.SMALLER_EQUAL, typeRange[1]);
+
+            // The ranges of an OR take in the other selections on the column, and become plain selections if one range is left
+            if (ranges != null) {
+                ranges = intersectRanges(ranges, List.of(new long[]{lower.getMin(), upper.getMax()}));
+                for (long value : notEqual)
+                    ranges = LogicalSelection.removeValue(ranges, value);
+                if (ranges.isEmpty()) return null;
+
+                // A side at the limit of the type is unbounded
+                ArrayList<long[]> bounded = new ArrayList<>();
+                for (long[] range : ranges)
+                    bounded.add(new long[]{range[0] == typeRange[0] ? Long.MIN_VALUE : range[0], range[1] == typeRange[1] ? Long.MAX_VALUE : range[1]});
+                if (bounded.size() > 1) {
+                    merged.add(new LogicalSelection(colNum, bounded));
+                } else {
+                    merged.addAll(LogicalSelection.forRange(colNum, bounded.get(0)));
+                }
+                continue;
+            }
+
+            // A != on a bound moves the bound, and one outside the bounds is always true
+            while (notEqual.remove(lower.getMin()))
+                lower = new LogicalSelection(colNum, OpTypes.GREATER_EQUAL, lower.getMin() + 1);
+            while (notEqual.remove(upper.getMax()))
+                upper = new LogicalSelection(colNum, OpTypes.SMALLER_EQUAL, upper.getMax() - 1);
+            notEqual.headSet(lower.getMin()).clear();
+            notEqual.tailSet(upper.getMax()).clear();
+
+            if (lower.getMin() > upper.getMax()) {
+                return null;
+            } else if (lower.getMin() == upper.getMax()) {
+                merged.add(new LogicalSelection(colNum, OpTypes.EQUAL, lower.getMin()));
+                continue;
+            }
+            if (lower.getMin() > typeRange[0]) merged.add(lower);
+            if (upper.getMax() < typeRange[1]) merged.add(upper);
+            for (long value : notEqual)
+                merged.add(new LogicalSelection(colNum, OpTypes.NOT_EQUAL, value));
+        }
+        return merged;
+    }
+
+    /**
+     * Orders selections by the estimated selectivity of their column, keeping the selections on a column together.
+     * Estimates come from the statistics of the table if there are any, then from sample rows inserted into the table,
+     * and otherwise from fixed defaults.
+     */
+    private void sortBySelectivity(Table table, ArrayList<LogicalSelection> selections) {
+        TableStatistics tableStatistics = statistics.get(table.getName().name);
+        long rowCount = tableStatistics == null && selections.size() > 1 ? countRows(table, null) : 0;
+
+        ArrayList<List<LogicalSelection>> columns = new ArrayList<>(groupSelectionsByColumn(selections).values());
+        Map<List<LogicalSelection>, Double> selectivities = new HashMap<>();
+        for (List<LogicalSelection> columnSelections : columns)
+            selectivities.put(columnSelections, estimateSelectivity(table, tableStatistics, rowCount, columnSelections));
+        columns.sort(Comparator.comparingDouble(selectivities::get));
+
+        selections.clear();
+        columns.forEach(selections::addAll);
+    }
+
+    private double estimateSelectivity(Table table, TableStatistics tableStatistics, long rowCount, List<LogicalSelection> columnSelections) {
+        // The ranges of an OR do not overlap, so their selectivities add up
+        LogicalSelection first = columnSelections.get(0);
+        if (first.type == OpTypes.OR) {
+            double selectivity = 0;
+            for (long[] range : first.ranges)
+                selectivity += estimateSelectivity(table, tableStatistics, rowCount, LogicalSelection.forRange(first.colNum, range));
+            return Math.min(selectivity, 1);
+        }
+
+        long low = Long.MIN_VALUE, high = Long.MAX_VALUE;
+        Set<Long> notEqual = new HashSet<>();
+        for (LogicalSelection ls : columnSelections) {
+            switch (ls.type) {
+                case OpTypes.GREATER, OpTypes.GREATER_EQUAL -> low = Math.max(low, ls.getMin());
+                case OpTypes.SMALLER, OpTypes.SMALLER_EQUAL -> high = Math.min(high, ls.getMax());
+                case OpTypes.EQUAL -> {
+                    low = Math.max(low, ls.value);
+                    high = Math.min(high, ls.value);
+                }
+                case OpTypes.NOT_EQUAL -> notEqual.add(ls.value);
+            }
+        }
+
+        String colName = table.getColumn(columnSelections.get(0).colNum).getNameString();
+        if (tableStatistics != null) {
+            TableStatistics.ColumnStatistics columnStatistics = tableStatistics.getColumn(colName);
+            if (columnStatistics != null)
+                return columnStatistics.selectivity(low, high, notEqual);
+        } else if (rowCount > 0) {
+            StringJoiner condition = new StringJoiner(" AND ");
+            for (LogicalSelection ls : columnSelections) {
+                String operator = switch (ls.type) {
+                    case OpTypes.EQUAL -> "=";
+                    case OpTypes.NOT_EQUAL -> "<>";
+                    default -> getComparisonOperator(ls.type);
+                };
+                condition.add("\"" + colName + "\" " + operator + " " + ls.value);
+            }
+            return (double) countRows(table, condition.toString()) / rowCount;
+        }
+        return TableStatistics.defaultSelectivity(low, high, notEqual);
+    }
+
+    /**
+     * Reads the pages of the table without an iterator when the device keeps zone maps of a column with a selection, so
+     * a page is skipped when its zone maps show that none of its records pass the selections. The key bounds become
+     * selections, as the key range is found from the first and last key of each page. A scan with the data index or
+     * several key ranges keeps its iterator.
+     */
+    private void planZoneMapScan(QueryPlan plan, Table table) {
+        TableStatistics tableStatistics = statistics.get(table.getName().name);
+        if (tableStatistics == null || tableStatistics.zoneMapColumns.isEmpty() || plan.iteratorRanges != null) return;
+        if (plan.getIteratorBound("minData") != null || plan.getIteratorBound("maxData") != null) return;
+
+        // The zone maps follow the bitmap in the page header, each as the min and then the max of its column
+        Schema tableSchema = plan.tableSchema;
+        Map<Integer, Integer> offsets = new LinkedHashMap<>();
+        int offset = 6 + tableStatistics.bitmapSize;
+        for (String name : tableStatistics.zoneMapColumns) {
+            int colNum = tableSchema.getColNum(name.toUpperCase());
+            if (colNum < 0) throw new RuntimeException("Zone map column " + name + " is not in table " + table.getName().name);
+            offsets.put(colNum, offset);
+            offset += 2 * tableSchema.getColSize(colNum);
+        }
+
+        StringJoiner zoneMapColumns = new StringJoiner(", ");
+        for (List<LogicalSelection> columnSelections : groupSelectionsByColumn(plan.nonIndexSelections).values()) {
+            int colNum = columnSelections.get(0).colNum;
+            if (offsets.containsKey(colNum)) zoneMapColumns.add(tableSchema.getColumn(colNum).name);
+        }
+        if (zoneMapColumns.length() == 0) return;
+
+        ArrayList<LogicalSelection> keySelections = new ArrayList<>();
+        for (IteratorBound bound : plan.iteratorBounds) {
+            keySelections.add(new LogicalSelection(0, bound.name.equals("minKey") ? OpTypes.GREATER_EQUAL : OpTypes.SMALLER_EQUAL, bound.value));
+        }
+        plan.iteratorBounds.clear();
+        plan.nonIndexSelections.addAll(0, keySelections);
+        plan.zoneMapOffsets = offsets;
+        plan.accessPathComment.add("Skipping pages by the zone maps of " + zoneMapColumns);
+    }
+
+    /**
+     * Estimates the pages read with and without the data index, using the statistics of the table.
+     * If scanning the key range reads fewer pages, the data index selections are moved to the non-index selections.
+     * Without statistics every index selection is used, as EmbedDB would.
+     */
+    private void chooseAccessPath(QueryPlan plan, Table table, ArrayList<LogicalSelection> indexSelections, ArrayList<LogicalSelection> nonIndexSelections) {
+        TableStatistics tableStatistics = statistics.get(table.getName().name);
+        if (tableStatistics == null || tableStatistics.rowCount <= 0) return;
+
+        int[] columnIndexes = table.bestIndexForColumn;
+        ArrayList<LogicalSelection> keySelections = new ArrayList<>();
+        ArrayList<LogicalSelection> dataSelections = new ArrayList<>();
+        for (LogicalSelection ls : indexSelections) {
+            if (columnIndexes[ls.colNum] == 0) {
+                keySelections.add(ls);
+            } else if (ls.type != OpTypes.NOT_EQUAL) {
+                dataSelections.add(ls);
+            }
+        }
+        if (dataSelections.isEmpty()) return;
+
+        // Records are stored in key order, so the key range is read as consecutive pages
+        int recordSize = plan.tableSchema.getRecordSize();
+        long totalPages = tableStatistics.dataPages(recordSize);
+        double keySelectivity = keySelections.isEmpty() ? 1 : estimateSelectivity(table, tableStatistics, 0, keySelections);
+        long scanPages = (long) Math.ceil(keySelectivity * totalPages);
+
+        // The data index reads the bitmaps of the key range, then every page holding at least one matching record
+        double dataSelectivity = 1;
+        for (List<LogicalSelection> columnSelections : groupSelectionsByColumn(dataSelections).values())
+            dataSelectivity *= estimateSelectivity(table, tableStatistics, 0, columnSelections);
+        double pageHitRate = 1 - Math.pow(1 - dataSelectivity, tableStatistics.recordsPerPage(recordSize));
+        long indexPages = tableStatistics.indexPages(scanPages) + (long) Math.ceil(scanPages * pageHitRate);
+
+        String scanName = keySelections.isEmpty() ? "full scan" : "key range scan";
+        StringJoiner dataColumns = new StringJoiner(", ");
+        groupSelectionsByColumn(dataSelections).keySet().forEach(colNum -> dataColumns.add(plan.tableSchema.getColumn(colNum).name));
+        plan.accessPathComment.add("Table has " + totalPages + " pages, estimated pages read: " + scanName + " " + scanPages + ", data index on " + dataColumns + " " + indexPages);
+        if (indexPages < scanPages) {
+            plan.accessPathComment.add("Using the data index");
+        } else {
+            plan.accessPathComment.add("Using " + scanName + ", " + dataColumns + " checked on each record");
+            indexSelections.removeAll(dataSelections);
+            nonIndexSelections.addAll(dataSelections);
+        }
+    }
+
+    private long countRows(Table table, String condition) {
+        String sql = "SELECT COUNT(*) FROM " + table.getName().getSchemaQualifiedStatementName();
+        if (condition != null) sql += " WHERE " + condition;
+        try (ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            return rs.getLong(1);
+        } catch (SQLException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private String getSelectionType(int opType) {
+        return switch (opType) {
+            case OpTypes.GREATER_EQUAL -> "SELECT_GTE";
+            case OpTypes.GREATER -> "SELECT_GT";
+            case OpTypes.SMALLER -> "SELECT_LT";
+            case OpTypes.SMALLER_EQUAL -> "SELECT_LTE";
+            case OpTypes.NOT_EQUAL -> "SELECT_NEQ";
+            case OpTypes.EQUAL -> "SELECT_EQ";
+            default -> throw new RuntimeException("Unknown type");
+        };
+    }
+
+    private String getComparisonOperator(int opType) {
+        return switch (opType) {
+            case OpTypes.GREATER_EQUAL -> ">=";
+            case OpTypes.GREATER -> ">";
+            case OpTypes.SMALLER -> "<";
+            case OpTypes.SMALLER_EQUAL -> "<=";
+            case OpTypes.NOT_EQUAL -> "!=";
+            case OpTypes.EQUAL -> "==";
+            default -> throw new RuntimeException("Unknown type");
+        };
+    }
+
+    private StringBuilder getFusedCode(QueryPlan plan, OrderedHashMap<String, String> cFunctions) {
+        StringBuilder code = new StringBuilder();
+        Schema tableSchema = plan.tableSchema;
+        QuerySpecification query = plan.query;
+        String indent = "";
+
+        // Create function header
+        code.append(indent).append("void execOperator(embedDBState* state) {\n");
+        indent += "    ";
+
+        for (String line : plan.accessPathComment)
+            code.append(indent).append("// ").append(line).append("\n");
+
+        // Set up iterator with its bounds on the stack, or in the storage struct. A zone map scan reads the pages itself
+        boolean isStatic = allocationMode == AllocationMode.STATIC;
+        ArrayList<String> storageFields = new ArrayList<>();
+        String it = isStatic ? "it" : "&it";
+        if (isStatic) {
+            code.append(indent).append("static embedDBQueryStorage storage;\n");
+        }
+        IteratorRanges ranges = plan.iteratorRanges;
+        if (!plan.isZoneMapScan()) {
+            if (isStatic) {
+                storageFields.add("embedDBIterator it;");
+                code.append(indent).append("embedDBIterator* it = &storage.it;\n");
+            } else {
+                code.append(indent).append("embedDBIterator it;\n");
+            }
+            for (IteratorBound bound : plan.iteratorBounds) {
+                String dataType = tableSchema.getColumn(bound.colNum).dataType;
+                if (isStatic) {
+                    storageFields.add(dataType + " " + bound.name + ";");
+                    code.append(indent).append("storage.").append(bound.name).append(" = ").append(bound.value).append(";\n");
+                } else {
+                    code.append(indent).append(dataType).append(" ").append(bound.name).append(" = ").append(bound.value).append(";\n");
+                }
+            }
+            for (String boundName : new String[]{"minKey", "maxKey", "minData", "maxData"}) {
+                code.append(indent).append(isStatic ? "it->" : "it.").append(boundName).append(" = ");
+                if (plan.getIteratorBound(boundName) != null) {
+                    code.append(isStatic ? "&storage." : "&").append(boundName).append(";\n");
+                } else {
+                    code.append("NULL;\n");
+                }
+            }
+            if (ranges == null) {
+                code.append(indent).append("embedDBInitIterator(state, ").append(it).append(");\n\n");
+            } else {
+                appendRangeArrays(code, indent, ranges, tableSchema.getColumn(ranges.colNum).dataType);
+                code.append("\n");
+            }
+        }
+
+        // The key is read to the start of the record and the data directly after it, so column offsets match the table schema
+        if (isStatic) {
+            storageFields.add("int8_t record[" + tableSchema.getRecordSize() + "];");
+            code.append(indent).append("int8_t* record = storage.record;\n");
+        } else {
+            code.append(indent).append("int8_t record[").append(tableSchema.getRecordSize()).append("];\n");
+        }
+
+        if (plan.limit >= 0) {
+            code.append(indent).append("uint32_t rows = 0;\n");
+        }
+
+        // Declare aggregate state, and the key of the current run of consecutive records for grouping in a hash table
+        if (plan.isHashGrouped()) {
+            cFunctions.put(plan.getSymbol("groupTable"), getGroupTableCode(plan));
+            appendClearGroupTable(code, indent, plan);
+            code.append(indent).append("ungroupedRecords = 0;\n");
+        }
+        for (String field : getGroupStateFields(plan, cFunctions)) {
+            code.append(indent).append(field).append(field.endsWith("]") ? " = {0};\n" : " = 0;\n");
+        }
+
+        // Read each range with the same iterator, keeping the aggregate state between them
+        if (ranges != null) {
+            code.append("\n").append(indent).append("for (uint32_t range = 0; range < ").append(ranges.ranges.size()).append(getLimitCheck(plan)).append("; range++) {\n");
+            indent += "    ";
+            code.append(indent).append(isStatic ? "it->" : "it.").append(ranges.minName).append(" = &rangeMin[range];\n");
+            code.append(indent).append(isStatic ? "it->" : "it.").append(ranges.maxName).append(" = &rangeMax[range];\n");
+            code.append(indent).append("embedDBInitIterator(state, ").append(it).append(");\n");
+        }
+
+        // Create loop that goes over all records
+        if (plan.isZoneMapScan()) {
+            indent = appendZoneMapPageLoops(code, indent, plan);
+        } else {
+            code.append("\n").append(indent).append("while (").append(plan.limit >= 0 ? "rows < " + plan.limit + " && " : "").append("embedDBNext(state, ").append(it).append(", record, record + ").append(tableSchema.getColSize(0)).append(")) {\n");
+            indent += "    ";
+        }
+
+        // Apply selections as soon as their column is read
+        Set<Integer> loadedColumns = new HashSet<>();
+        for (List<LogicalSelection> columnSelections : groupSelectionsByColumn(plan.nonIndexSelections).values()) {
+            int colNum = columnSelections.get(0).colNum;
+            appendLoadColumn(code, indent, tableSchema, colNum, loadedColumns);
+            code.append(indent).append("if (!(").append(getColumnCondition(columnSelections, tableSchema.getColumn(colNum).name)).append(")) continue;\n");
+        }
+        appendPredicateCheck(code, indent, plan, "continue");
+
+        if (!plan.isGrouped()) {
+            // Print each record that passes the selections
+            appendPrintColumns(code, indent, plan, loadedColumns);
+            if (plan.limit >= 0) code.append(indent).append("rows++;\n");
+        } else {
+            // Read every column used by the aggregation
+            appendLoadAggregateColumns(code, indent, plan, loadedColumns);
+
+            if (plan.isHashGrouped()) {
+                appendHashGroupUpdate(code, indent, plan);
+            } else {
+                appendConsecutiveGroupUpdate(code, indent, plan);
+            }
+        }
+
+        // Close loop that goes over all records, and the loop over the pages of a zone map scan
+        indent = indent.substring(0, indent.length() - 4);
+        code.append(indent).append("}\n");
+        if (plan.isZoneMapScan()) {
+            indent = indent.substring(0, indent.length() - 4);
+            code.append(indent).append("}\n");
+        }
+
+        if (ranges != null) {
+            code.append(indent).append("embedDBCloseIterator(").append(it).append(");\n");
+            indent = indent.substring(0, indent.length() - 4);
+            code.append(indent).append("}\n");
+        }
+
+        // Output the last group, or every group in the hash table
+        if (plan.isGrouped()) {
+            appendFusedGroupsEnd(code, indent, plan);
+        }
+        appendOutputEnd(code, indent, plan);
+
+        if (ranges == null && !plan.isZoneMapScan()) {
+            code.append("\n").append(indent).append("embedDBCloseIterator(").append(it).append(");\n");
+        }
+
+        // Close function
+        //noinspection ConstantValue
+        indent = indent.substring(0, indent.length() - 4);
+        code.append(indent).append("}\n");
+
+        prependStorageStruct(code, storageFields);
+
+        return code;
+    }
+
+    /**
+     * Fused scan shared by several queries. The iterator reads the union of their key ranges, as the data index of one
+     * query could skip records that another needs, and each query checks the rest of its selections on every record.
+     * The state of each query is in a struct named after it.
+     */
+    private StringBuilder getSharedScanCode(List<QueryPlan> plans, OrderedHashMap<String, String> cFunctions) {
+        StringBuilder code = new StringBuilder();
+        String indent = "";
+
+        // Create function header
+        code.append(indent).append("void execQueries(embedDBState* state) {\n");
+        indent += "    ";
+
+        if (plans.isEmpty()) {
+            code.append(indent).append("// No query can return a row, so no records are read\n");
+            appendOutputEnd(code, indent, plans);
+            code.append("}\n");
+            return code;
+        }
+
+        Schema tableSchema = plans.get(0).tableSchema;
+        long minKey = Long.MAX_VALUE, maxKey = Long.MIN_VALUE;
+        for (QueryPlan plan : plans) {
+            long[] keyRange = getKeyRange(plan);
+            minKey = Math.min(minKey, keyRange[0]);
+            maxKey = Math.max(maxKey, keyRange[1]);
+        }
+
+        // Set up iterator with its bounds on the stack, or in the storage struct
+        boolean isStatic = allocationMode == AllocationMode.STATIC;
+        ArrayList<String> storageFields = new ArrayList<>();
+        String it = isStatic ? "it" : "&it";
+        if (isStatic) {
+            code.append(indent).append("static embedDBQueryStorage storage;\n");
+            storageFields.add("embedDBIterator it;");
+            code.append(indent).append("embedDBIterator* it = &storage.it;\n");
+        } else {
+            code.append(indent).append("embedDBIterator it;\n");
+        }
+        String keyType = tableSchema.getColumn(0).dataType;
+        Map<String, Long> keyBounds = new LinkedHashMap<>();
+        if (minKey != Long.MIN_VALUE) keyBounds.put("minKey", minKey);
+        if (maxKey != Long.MAX_VALUE) keyBounds.put("maxKey", maxKey);
+        for (Map.Entry<String, Long> bound : keyBounds.entrySet()) {
+            if (isStatic) {
+                storageFields.add(keyType + " " + bound.getKey() + ";");
+                code.append(indent).append("storage.").append(bound.getKey()).append(" = ").append(bound.getValue()).append(";\n");
+            } else {
+                code.append(indent).append(keyType).append(" ").append(bound.getKey()).append(" = ").append(bound.getValue()).append(";\n");
+            }
+        }
+        for (String boundName : new String[]{"minKey", "maxKey", "minData", "maxData"}) {
+            code.append(indent).append(isStatic ? "it->" : "it.").append(boundName).append(" = ");
+            if (keyBounds.containsKey(boundName)) {
+                code.append(isStatic ? "&storage." : "&").append(boundName).append(";\n");
+            } else {
+                code.append("NULL;\n");
+            }
+        }
+        code.append(indent).append("embedDBInitIterator(state, ").append(it).append(");\n\n");
+
+        // The key is read to the start of the record and the data directly after it, so column offsets match the table schema
+        if (isStatic) {
+            storageFields.add("int8_t record[" + tableSchema.getRecordSize() + "];");
+            code.append(indent).append("int8_t* record = storage.record;\n");
+        } else {
+            code.append(indent).append("int8_t record[").append(tableSchema.getRecordSize()).append("];\n");
+        }
+
+        // Declare the state of each query
+        Set<Integer> usedColumns = new TreeSet<>();
+        ArrayList<List<LogicalSelection>> selections = new ArrayList<>();
+        StringJoiner hasRowsLeft = new StringJoiner(" || ");
+        for (QueryPlan plan : plans) {
+            List<String> fields = new ArrayList<>();
+            if (plan.limit >= 0) {
+                fields.add("uint32_t rows");
+                hasRowsLeft.add(plan.getStatePrefix() + "rows < " + plan.limit);
+            }
+            fields.addAll(getGroupStateFields(plan, cFunctions));
+            if (!fields.isEmpty()) {
+                code.append(indent).append("struct {\n");
+                for (String field : fields)
+                    code.append(indent).append("    ").append(field).append(";\n");
+                code.append(indent).append("} ").append(plan.queryName).append(" = {0};\n");
+            }
+            if (plan.isHashGrouped()) {
+                cFunctions.put(plan.getSymbol("groupTable"), getGroupTableCode(plan));
+                appendClearGroupTable(code, indent, plan);
+                code.append(indent).append(plan.getSymbol("ungroupedRecords")).append(" = 0;\n");
+            }
+
+            List<LogicalSelection> planSelections = getRecordSelections(plan, minKey, maxKey);
+            selections.add(planSelections);
+            usedColumns.addAll(getUsedColumns(plan, planSelections));
+        }
+
+        // Stop reading once every query has output its LIMIT rows
+        String rowsLeftCheck = "";
+        if (plans.stream().allMatch(plan -> plan.limit >= 0)) {
+            rowsLeftCheck = plans.size() > 1 ? "(" + hasRowsLeft + ") && " : hasRowsLeft + " && ";
+        }
+        code.append("\n").append(indent).append("while (").append(rowsLeftCheck).append("embedDBNext(state, ").append(it).append(", record, record + ").append(tableSchema.getColSize(0)).append(")) {\n");
+        indent += "    ";
+
+        // Read every column used by a query once
+        Set<Integer> loadedColumns = new HashSet<>();
+        for (int colNum : usedColumns) {
+            appendLoadColumn(code, indent, tableSchema, colNum, loadedColumns);
+        }
+
+        // Each query only sees the records that pass its own selections
+        for (int i = 0; i < plans.size(); i++) {
+            QueryPlan plan = plans.get(i);
+            Collection<List<LogicalSelection>> columnSelectionsList = groupSelectionsByColumn(selections.get(i)).values();
+            int numConditions = columnSelectionsList.size() + (plan.expressionSelections.isEmpty() ? 0 : 1) + (plan.limit >= 0 ? 1 : 0);
+            StringJoiner condition = new StringJoiner(" && ");
+            for (List<LogicalSelection> columnSelections : columnSelectionsList) {
+                String columnCondition = getColumnCondition(columnSelections, tableSchema.getColumn(columnSelections.get(0).colNum).name);
+                boolean isOr = columnSelections.size() == 1 && columnSelections.get(0).type == OpTypes.OR;
+                condition.add(isOr && numConditions > 1 ? "(" + columnCondition + ")" : columnCondition);
+            }
+            if (!plan.expressionSelections.isEmpty()) condition.add(plan.getSymbol("wherePredicate") + "(record)");
+            if (plan.limit >= 0) condition.add(plan.getStatePrefix() + "rows < " + plan.limit);
+
+            code.append(indent).append("// ").append(plan.queryName).append("\n");
+            code.append(indent).append(numConditions == 0 ? "{" : "if (" + condition + ") {").append("\n");
+            indent += "    ";
+            if (!plan.isGrouped()) {
+                appendPrintColumns(code, indent, plan, loadedColumns);
+                if (plan.limit >= 0) code.append(indent).append(plan.getStatePrefix()).append("rows++;\n");
+            } else if (plan.isHashGrouped()) {
+                appendHashGroupUpdate(code, indent, plan);
+            } else {
+                appendConsecutiveGroupUpdate(code, indent, plan);
+            }
+            indent = indent.substring(0, indent.length() - 4);
+            code.append(indent).append("}\n");
+        }
+
+        // Close loop that goes over all records
+        indent = indent.substring(0, indent.length() - 4);
+        code.append(indent).append("}\n");
+
+        // Output the last group of each query, or every group in its hash table
+        for (QueryPlan plan : plans) {
+            if (plan.isGrouped()) appendFusedGroupsEnd(code, indent, plan);
+        }
+        appendOutputEnd(code, indent, plans);
+        code.append("\n");
+        code.append(indent).append("embedDBCloseIterator(").append(it).append(");\n");
+
+        // Close function
+        //noinspection ConstantValue
+        indent = indent.substring(0, indent.length() - 4);
+        code.append(indent).append("}\n");
+
+        prependStorageStruct(code, storageFields);
+
+        return code;
+    }
+
+    /**
+     * Continuous query code. The state of the query is in a struct, and onInsert takes the key and data of a record as
+     * given to embedDBPut, checks the selections and updates the aggregates. printResult outputs the groups held in the
+     * state, which for groups that are consecutive records is the open one.
+     */
+    private StringBuilder getContinuousCode(QueryPlan plan, OrderedHashMap<String, String> cFunctions) {
+        StringBuilder code = new StringBuilder();
+        String indent = "    ";
+        if (plan.isEmpty) {
+            putOutputFunctions(plan, cFunctions);
+            code.append("void initContinuousQuery() {\n");
+            code.append("}\n\n");
+            code.append("void onInsert(const void* recordKey, const void* recordData) {\n");
+            code.append(indent).append("// The query can never return a row, so records are ignored\n");
+            code.append("}\n\n");
+            code.append("void printResult() {\n");
+            appendOutputEnd(code, indent, plan);
+            code.append("}\n");
+            return code;
+        }
+
+        Schema tableSchema = plan.tableSchema;
+        plan.queryName = "query";
+        putOutputFunctions(plan, cFunctions);
+        putPredicateFunction(plan, cFunctions);
+
+        // Declare the state of the query
+        List<String> fields = new ArrayList<>();
+        fields.addAll(getGroupStateFields(plan, cFunctions));
+        if (!fields.isEmpty()) {
+            code.append("typedef struct {\n");
+            for (String field : fields)
+                code.append(indent).append(field).append(";\n");
+            code.append("} continuousQueryState;\n\n");
+            code.append("continuousQueryState ").append(plan.queryName).append(";\n\n");
+        }
+        if (plan.isHashGrouped()) {
+            cFunctions.put(plan.getSymbol("groupTable"), getGroupTableCode(plan));
+        }
+
+        code.append("void initContinuousQuery() {\n");
+        if (!fields.isEmpty()) {
+            code.append(indent).append("memset(&").append(plan.queryName).append(", 0, sizeof(").append(plan.queryName).append("));\n");
+        }
+        if (plan.isHashGrouped()) {
+            appendClearGroupTable(code, indent, plan);
+            code.append(indent).append(plan.getSymbol("ungroupedRecords")).append(" = 0;\n");
+        }
+        code.append("}\n\n");
+
+        // The key goes to the start of the record and the data directly after it, so column offsets match the table schema
+        code.append("void onInsert(const void* recordKey, const void* recordData) {\n");
+        int keySize = tableSchema.getColSize(0);
+        code.append(indent).append("int8_t record[").append(tableSchema.getRecordSize()).append("];\n");
+        code.append(indent).append("memcpy(record, recordKey, ").append(keySize).append(");\n");
+        code.append(indent).append("memcpy(record + ").append(keySize).append(", recordData, ").append(tableSchema.getRecordSize() - keySize).append(");\n");
+
+        // Apply selections as soon as their column is read
+        List<LogicalSelection> selections = getRecordSelections(plan, Long.MIN_VALUE, Long.MAX_VALUE);
+        Set<Integer> loadedColumns = new HashSet<>();
+        for (List<LogicalSelection> columnSelections : groupSelectionsByColumn(selections).values()) {
+            int colNum = columnSelections.get(0).colNum;
+            appendLoadColumn(code, indent, tableSchema, colNum, loadedColumns);
+            code.append(indent).append("if (!(").append(getColumnCondition(columnSelections, tableSchema.getColumn(colNum).name)).append(")) return;\n");
+        }
+        appendPredicateCheck(code, indent, plan, "return");
+
+        if (!plan.isGrouped()) {
+            appendPrintColumns(code, indent, plan, loadedColumns);
+        } else {
+            appendLoadAggregateColumns(code, indent, plan, loadedColumns);
+            if (plan.isHashGrouped()) {
+                appendHashGroupUpdate(code, indent, plan);
+            } else {
+                appendConsecutiveGroupUpdate(code, indent, plan);
+            }
+        }
+        code.append("}\n\n");
+
+        code.append("void printResult() {\n");
+        if (plan.isSlidingWindow()) {
+            appendSlidingWindowOutput(code, indent, plan);
+        } else if (plan.isGrouped()) {
+            appendFusedGroupsEnd(code, indent, plan);
+        }
+        appendOutputEnd(code, indent, plan);
+        code.append("}\n");
+        return code;
+    }
+
+    /**
+     * Smallest and largest key a query can read, with Long.MIN_VALUE and Long.MAX_VALUE for an unbounded side
+     */
+    private long[] getKeyRange(QueryPlan plan) {
+        long[] keyRange = {Long.MIN_VALUE, Long.MAX_VALUE};
+        IteratorBound minKey = plan.getIteratorBound("minKey"), maxKey = plan.getIteratorBound("maxKey");
+        if (minKey != null) keyRange[0] = minKey.value;
+        if (maxKey != null) keyRange[1] = maxKey.value;
+        IteratorRanges ranges = plan.iteratorRanges;
+        if (ranges != null && ranges.colNum == 0) {
+            keyRange[0] = Math.max(keyRange[0], ranges.ranges.get(0)[0]);
+            keyRange[1] = Math.min(keyRange[1], ranges.ranges.get(ranges.ranges.size() - 1)[1]);
+        }
+        return keyRange;
+    }
+
+    /**
+     * Selections a query checks on each record it is given, which are its iterator bounds and ranges other than the key
+     * bounds minKey and maxKey already applied to the records, and its non-index selections
+     */
+    private List<LogicalSelection> getRecordSelections(QueryPlan plan, long minKey, long maxKey) {
+        ArrayList<LogicalSelection> selections = new ArrayList<>();
+        for (IteratorBound bound : plan.iteratorBounds) {
+            switch (bound.name) {
+                case "minKey" -> {
+                    if (bound.value != minKey) selections.add(new LogicalSelection(bound.colNum, OpTypes.GREATER_EQUAL, bound.value));
+                }
+                case "maxKey" -> {
+                    if (bound.value != maxKey) selections.add(new LogicalSelection(bound.colNum, OpTypes.SMALLER_EQUAL, bound.value));
+                }
+                case "minData" -> selections.add(new LogicalSelection(bound.colNum, OpTypes.GREATER_EQUAL, bound.value));
+                case "maxData" -> selections.add(new LogicalSelection(bound.colNum, OpTypes.SMALLER_EQUAL, bound.value));
+            }
+        }
+        if (plan.iteratorRanges != null) {
+            selections.add(new LogicalSelection(plan.iteratorRanges.colNum, plan.iteratorRanges.ranges));
+        }
+        selections.addAll(plan.nonIndexSelections);
+
+        // Equal key bounds become one comparison
+        ArrayList<LogicalSelection> merged = mergeSelections(selections, plan.tableSchema);
+        return merged != null ? merged : selections;
+    }
+
+    /**
+     * Columns a query reads from each record
+     */
+    private Set<Integer> getUsedColumns(QueryPlan plan, List<LogicalSelection> selections) {
+        Set<Integer> columns = new HashSet<>();
+        for (LogicalSelection ls : selections)
+            columns.add(ls.colNum);
+        if (!plan.isGrouped()) {
+            for (int i = 0; i < plan.query.indexLimitVisible; i++) {
+                Expression columnExpression = plan.query.exprColumns[i];
+                if (columnExpression.getType() == OpTypes.COLUMN) columns.add(columnExpression.getColumnIndex());
+            }
+        }
+        for (ArithmeticExpression expression : plan.groupByExpressions)
+            columns.add(expression.getCol());
+        for (AggregateColumn agg : plan.aggregates)
+            if (!agg.isGroupColumn() && agg.colNum >= 0)
+                columns.add(agg.colNum);
+        return columns;
+    }
+
+    /**
+     * Fused aggregation of groups that are consecutive records, outputting a group when the key changes
+     */
+    private void appendConsecutiveGroupUpdate(StringBuilder code, String indent, QueryPlan plan) {
+        String prefix = plan.getStatePrefix();
+        if (plan.isSlidingWindow()) {
+            appendSlidingWindowUpdate(code, indent, plan);
+            return;
+        }
+
+        // A record is in the current window if it is less than the width past its start, and the GROUP BY expression is
+        // only computed when a window starts
+        long windowWidth = plan.getTumblingWindowWidth();
+        if (windowWidth > 0) {
+            String keyName = plan.tableSchema.getColumn(0).name;
+            code.append(indent).append("if (").append(prefix).append("hasGroup && ").append(keyName).append(" - ").append(prefix).append("windowStart >= ").append(windowWidth).append(") {\n");
+            appendFusedGroupOutput(code, indent + "    ", plan, prefix);
+            code.append(indent).append("    ").append(prefix).append("hasGroup = 0;\n");
+            code.append(indent).append("}\n");
+            code.append(indent).append("if (!").append(prefix).append("hasGroup) {\n");
+            code.append(indent).append("    ").append(prefix).append("hasGroup = 1;\n");
+            code.append(indent).append("    ").append(prefix).append("windowStart = ").append(keyName).append(" - ").append(keyName).append(" % ").append(windowWidth).append(";\n");
+            code.append(indent).append("    ").append(prefix).append("groupKey = ").append(getWindowGroupKey(plan, keyName, prefix + "windowStart")).append(";\n");
+            appendAggregateReset(code, indent + "    ", plan, prefix);
+            code.append(indent).append("}\n");
+            appendAggregateUpdate(code, indent, plan, prefix);
+            return;
+        }
+
+        // Output the previous group when this record starts a new one
+        if (!plan.isGroupedByConstant) {
+            appendGroupKeys(code, indent, plan);
+            code.append(indent).append("if (").append(prefix).append("hasGroup && ").append(getRunChangedCondition(plan)).append(") {\n");
+            indent += "    ";
+            appendFusedGroupOutput(code, indent, plan, prefix);
+            code.append(indent).append(prefix).append("hasGroup = 0;\n");
+            indent = indent.substring(0, indent.length() - 4);
+            code.append(indent).append("}\n");
+        }
+
+        // Reset the aggregate state at the start of a group
+        code.append(indent).append("if (!").append(prefix).append("hasGroup) {\n");
+        indent += "    ";
+        appendRunStart(code, indent, plan);
+        appendAggregateReset(code, indent, plan, prefix);
+        indent = indent.substring(0, indent.length() - 4);
+        code.append(indent).append("}\n");
+
+        // Update the aggregate state with this record
+        appendAggregateUpdate(code, indent, plan, prefix);
+    }
+
+    /**
+     * Fused aggregation of groups in the hash table, outputting and clearing the table when a record starts a new run
+     * of the GROUP BY expressions that follow the key order
+     */
+    private void appendHashGroupUpdate(StringBuilder code, String indent, QueryPlan plan) {
+        appendGroupKeys(code, indent, plan);
+        if (!plan.getGroupKeys(true).isEmpty()) {
+            code.append(indent).append("if (").append(plan.getStatePrefix()).append("hasGroup && ").append(getRunChangedCondition(plan)).append(") {\n");
+            appendGroupTableOutput(code, indent + "    ", plan);
+            appendClearGroupTable(code, indent + "    ", plan);
+            code.append(indent).append("}\n");
+            appendRunStart(code, indent, plan);
+        }
+        appendGroupTableUpdate(code, indent, plan);
+    }
+
+    /**
+     * Fused aggregation of sliding windows. Records are aggregated in the open pane of one slide in a ring of panes. When
+     * a record is past the open pane, the window ending with it is output by combining the panes in the ring, and the
+     * next pane replaces the oldest one, until the pane of the record is reached or no records are left in the ring
+     */
+    private void appendSlidingWindowUpdate(StringBuilder code, String indent, QueryPlan plan) {
+        String prefix = plan.getStatePrefix();
+        appendGroupKeys(code, indent, plan);
+        code.append(indent).append("if (!").append(prefix).append("hasGroup) {\n");
+        code.append(indent).append("    ").append(prefix).append("hasGroup = 1;\n");
+        code.append(indent).append("    ").append(prefix).append("groupKey = key;\n");
+        code.append(indent).append("}\n");
+        code.append(indent).append("while (").append(prefix).append("groupKey != key) {\n");
+        appendNextWindowPane(code, indent + "    ", plan);
+        code.append(indent).append("    if (").append(prefix).append("windowRecords == 0) ").append(prefix).append("groupKey = key;\n");
+        code.append(indent).append("}\n");
+        code.append(indent).append(plan.getSymbol("windowPane")).append("* pane = &").append(prefix).append("panes[").append(prefix).append("openPane];\n");
+        code.append(indent).append("if (pane->records == 0) {\n");
+        appendAggregateReset(code, indent + "    ", plan, "pane->");
+        code.append(indent).append("}\n");
+        code.append(indent).append("pane->records++;\n");
+        code.append(indent).append(prefix).append("windowRecords++;\n");
+        appendAggregateUpdate(code, indent, plan, "pane->");
+    }
+
+    /**
+     * Value of the GROUP BY expression of a tumbling window, which is its start for TIME_BUCKET
+     */
+    private static String getWindowGroupKey(QueryPlan plan, String keyName, String windowStart) {
+        ArithmeticExpression expression = plan.groupByExpressions.get(0);
+        return expression.isBucketStart() ? windowStart : String.format(expression.toFormattedString(), keyName);
+    }
+
+    /**
+     * Outputs the sliding window ending with the open pane, then opens the next pane in place of the oldest one
+     */
+    private void appendNextWindowPane(StringBuilder code, String indent, QueryPlan plan) {
+        String prefix = plan.getStatePrefix();
+        appendSlidingWindowOutput(code, indent, plan);
+        code.append(indent).append(prefix).append("openPane = ").append(prefix).append("openPane == ").append(plan.getWindowPanes() - 1).append(" ? 0 : ").append(prefix).append("openPane + 1;\n");
+        code.append(indent).append(prefix).append("windowRecords -= ").append(prefix).append("panes[").append(prefix).append("openPane].records;\n");
+        code.append(indent).append(prefix).append("panes[").append(prefix).append("openPane].records = 0;\n");
+        code.append(indent).append(prefix).append("groupKey += ").append(plan.windowSlide).append(";\n");
+    }
+
+    /**
+     * Outputs the sliding window ending with the open pane by combining the panes that have records, leaving out
+     * windows that would start before key 0
+     */
+    private void appendSlidingWindowOutput(StringBuilder code, String indent, QueryPlan plan) {
+        String prefix = plan.getStatePrefix();
+        String windowPane = plan.getSymbol("windowPane");
+        code.append(indent).append("if (").append(prefix).append("windowRecords > 0 && ").append(prefix).append("groupKey >= ").append(plan.windowSize - plan.windowSlide).append(") {\n");
+        indent += "    ";
+        code.append(indent).append(windowPane).append(" window = {0};\n");
+        code.append(indent).append("for (uint32_t i = 0; i < ").append(plan.getWindowPanes()).append("; i++) {\n");
+        code.append(indent).append("    ").append(windowPane).append("* part = &").append(prefix).append("panes[i];\n");
+        code.append(indent).append("    if (part->records == 0) continue;\n");
+        code.append(indent).append("    if (window.records == 0) {\n");
+        code.append(indent).append("        window = *part;\n");
+        code.append(indent).append("        continue;\n");
+        code.append(indent).append("    }\n");
+        code.append(indent).append("    window.records += part->records;\n");
+        for (int j = 0; j < plan.aggregates.size(); j++) {
+            String name = "agg" + j;
+            switch (plan.aggregates.get(j).type) {
+                case OpTypes.MIN -> code.append(indent).append("    if (part->").append(name).append(" < window.").append(name).append(") window.").append(name).append(" = part->").append(name).append(";\n");
+                case OpTypes.MAX -> code.append(indent).append("    if (part->").append(name).append(" > window.").append(name).append(") window.").append(name).append(" = part->").append(name).append(";\n");
+                case OpTypes.COUNT, OpTypes.SUM -> code.append(indent).append("    window.").append(name).append(" += part->").append(name).append(";\n");
+                case OpTypes.AVG -> {
+                    code.append(indent).append("    window.").append(name).append("Sum += part->").append(name).append("Sum;\n");
+                    code.append(indent).append("    window.").append(name).append("Count += part->").append(name).append("Count;\n");
+                }
+            }
+        }
+        code.append(indent).append("}\n");
+        appendFusedGroupOutput(code, indent, plan, "window.");
+        indent = indent.substring(0, indent.length() - 4);
+        code.append(indent).append("}\n");
+    }
+
+    /**
+     * Outputs the groups still held once every record is read
+     */
+    private void appendFusedGroupsEnd(StringBuilder code, String indent, QueryPlan plan) {
+        if (plan.isSlidingWindow()) {
+            // Every window with records in the ring, up to the one that starts with the last pane
+            code.append(indent).append("while (").append(plan.getStatePrefix()).append("windowRecords > 0").append(getLimitCheck(plan)).append(") {\n");
+            appendNextWindowPane(code, indent + "    ", plan);
+            code.append(indent).append("}\n");
+        } else if (plan.isHashGrouped()) {
+            appendGroupTableOutput(code, indent, plan);
+            appendUngroupedReport(code, indent, plan);
+        } else {
+            code.append(indent).append("if (").append(plan.getStatePrefix()).append("hasGroup").append(getLimitCheck(plan)).append(") {\n");
+            appendFusedGroupOutput(code, indent + "    ", plan, plan.getStatePrefix());
+            code.append(indent).append("}\n");
+        }
+    }
+
+    /**
+     * Loads the columns of the GROUP BY expressions and the aggregates from the record
+     */
+    private void appendLoadAggregateColumns(StringBuilder code, String indent, QueryPlan plan, Set<Integer> loadedColumns) {
+        for (ArithmeticExpression expression : plan.groupByExpressions) {
+            appendLoadColumn(code, indent, plan.tableSchema, expression.getCol(), loadedColumns);
+        }
+        for (AggregateColumn agg : plan.aggregates) {
+            if (!agg.isGroupColumn() && agg.colNum >= 0) {
+                appendLoadColumn(code, indent, plan.tableSchema, agg.colNum, loadedColumns);
+            }
+        }
+    }
+
+    /**
+     * Computes the value of each GROUP BY expression for the loaded record
+     */
+    private void appendGroupKeys(StringBuilder code, String indent, QueryPlan plan) {
+        for (int k = 0; k < plan.groupByExpressions.size(); k++) {
+            ArithmeticExpression expression = plan.groupByExpressions.get(k);
+            String colName = plan.tableSchema.getColumn(expression.getCol()).name;
+            code.append(indent).append(getGroupKeyType(plan, k)).append(" ").append(getGroupKeyName(plan, "key", k)).append(" = ").append(String.format(expression.toFormattedString(), colName)).append(";\n");
+        }
+    }
+
+    /**
+     * Condition that the record is not in the current run of consecutive records
+     */
+    private static String getRunChangedCondition(QueryPlan plan) {
+        List<Integer> runKeys = plan.getGroupKeys(true);
+        StringJoiner condition = new StringJoiner(" || ");
+        for (int k : runKeys) {
+            condition.add(getGroupKeyName(plan, "key", k) + " != " + plan.getStatePrefix() + getGroupKeyName(plan, "groupKey", k));
+        }
+        return runKeys.size() > 1 ? "(" + condition + ")" : condition.toString();
+    }
+
+    /**
+     * Makes the record the start of the current run
+     */
+    private static void appendRunStart(StringBuilder code, String indent, QueryPlan plan) {
+        code.append(indent).append(plan.getStatePrefix()).append("hasGroup = 1;\n");
+        for (int k : plan.getGroupKeys(true)) {
+            code.append(indent).append(plan.getStatePrefix()).append(getGroupKeyName(plan, "groupKey", k)).append(" = ").append(getGroupKeyName(plan, "key", k)).append(";\n");
+        }
+    }
+
+    /**
+     * Fixed size open addressing hash table with the aggregate state of each group, for GROUP BY expressions that do not
+     * follow the key order. Several of them are packed into a composite key. findGroup returns the slot of a key, an
+     * unused slot for a new group, or NULL once the table holds maxGroups groups, which also guarantees an unused slot
+     * that ends the probing
+     */
+    private String getGroupTableCode(QueryPlan plan) {
+        List<Integer> hashKeys = plan.getGroupKeys(false);
+        int bits = Long.numberOfTrailingZeros(plan.groupTableSize);
+        String groupSlot = plan.getSymbol("groupSlot");
+        String groupTable = plan.getSymbol("groupTable");
+        StringBuilder code = new StringBuilder();
+        String keyType;
+        if (hashKeys.size() == 1) {
+            keyType = getGroupKeyType(plan, hashKeys.get(0));
+        } else {
+            keyType = plan.getSymbol("compositeKey");
+            StringJoiner equals = new StringJoiner(" && ");
+            code.append("typedef struct {\n");
+            for (int k : hashKeys) {
+                code.append("    ").append(getGroupKeyType(plan, k)).append(" key").append(k).append(";\n");
+                equals.add("a->key" + k + " == b->key" + k);
+            }
+            code.append("} ").append(keyType).append(";\n\n");
+            code.append("int8_t ").append(keyType).append("Equals(const ").append(keyType).append("* a, const ").append(keyType).append("* b) {\n");
+            code.append("    return ").append(equals).append(";\n");
+            code.append("}\n\n");
+        }
+        code.append("typedef struct {\n");
+        code.append("    int8_t used;\n");
+        code.append("    ").append(keyType).append(" groupKey;\n");
+        for (String field : getAggregateStateFields(plan)) {
+            code.append("    ").append(field).append(";\n");
+        }
+        code.append("} ").append(groupSlot).append(";\n\n");
+        code.append(groupSlot).append(" ").append(groupTable).append("[").append(plan.groupTableSize).append("];\n");
+        code.append("uint32_t ").append(plan.getSymbol("groupCount")).append(" = 0;\n");
+        code.append("uint32_t ").append(plan.getSymbol("ungroupedRecords")).append(" = 0;\n\n");
+        code.append(groupSlot).append("* ").append(plan.getSymbol("findGroup")).append("(").append(keyType).append(" key) {\n");
+        if (hashKeys.size() == 1) {
+            code.append("    uint32_t slot = ((uint32_t)").append(keyType.equals("double") ? "(int64_t)" : "").append("key * 2654435761u) >> ").append(32 - bits).append(";\n");
+            code.append("    while (").append(groupTable).append("[slot].used) {\n");
+            code.append("        if (").append(groupTable).append("[slot].groupKey == key) return &").append(groupTable).append("[slot];\n");
+        } else {
+            code.append("    uint32_t hash = 0;\n");
+            for (int k : hashKeys) {
+                code.append("    hash = (hash ^ (uint32_t)").append(getGroupKeyType(plan, k).equals("double") ? "(int64_t)" : "").append("key.key").append(k).append(") * 2654435761u;\n");
+            }
+            code.append("    uint32_t slot = hash >> ").append(32 - bits).append(";\n");
+            code.append("    while (").append(groupTable).append("[slot].used) {\n");
+            code.append("        if (").append(keyType).append("Equals(&").append(groupTable).append("[slot].groupKey, &key)) return &").append(groupTable).append("[slot];\n");
+        }
+        code.append("        slot = (slot + 1) & ").append(plan.groupTableSize - 1).append(";\n");
+        code.append("    }\n");
+        code.append("    return ").append(plan.getSymbol("groupCount")).append(" < ").append(plan.maxGroups).append(" ? &").append(groupTable).append("[slot] : NULL;\n");
+        code.append("}\n");
+        return code.toString();
+    }
+
+    private void appendClearGroupTable(StringBuilder code, String indent, QueryPlan plan) {
+        String groupTable = plan.getSymbol("groupTable");
+        code.append(indent).append("memset(").append(groupTable).append(", 0, sizeof(").append(groupTable).append("));\n");
+        code.append(indent).append(plan.getSymbol("groupCount")).append(" = 0;\n");
+    }
+
+    /**
+     * Adds the current record to its group in the hash table, counting it as ungrouped if the table is full.
+     * The keys of the GROUP BY expressions are already computed
+     */
+    private void appendGroupTableUpdate(StringBuilder code, String indent, QueryPlan plan) {
+        List<Integer> hashKeys = plan.getGroupKeys(false);
+        String key;
+        if (hashKeys.size() == 1) {
+            key = getGroupKeyName(plan, "key", hashKeys.get(0));
+        } else {
+            key = "key";
+            StringJoiner fields = new StringJoiner(", ");
+            for (int k : hashKeys) {
+                fields.add(".key" + k + " = key" + k);
+            }
+            code.append(indent).append(plan.getSymbol("compositeKey")).append(" key = {").append(fields).append("};\n");
+        }
+        code.append(indent).append(plan.getSymbol("groupSlot")).append("* group = ").append(plan.getSymbol("findGroup")).append("(").append(key).append(");\n");
+        code.append(indent).append("if (group == NULL) {\n");
+        code.append(indent).append("    ").append(plan.getSymbol("ungroupedRecords")).append("++;\n");
+        code.append(indent).append("} else {\n");
+        indent += "    ";
+        code.append(indent).append("if (!group->used) {\n");
+        code.append(indent).append("    group->used = 1;\n");
+        code.append(indent).append("    group->groupKey = ").append(key).append(";\n");
+        code.append(indent).append("    ").append(plan.getSymbol("groupCount")).append("++;\n");
+        appendAggregateReset(code, indent + "    ", plan, "group->");
+        code.append(indent).append("}\n");
+        appendAggregateUpdate(code, indent, plan, "group->");
+        indent = indent.substring(0, indent.length() - 4);
+        code.append(indent).append("}\n");
+    }
+
+    /**
+     * Prints every group in the hash table
+     */
+    private void appendGroupTableOutput(StringBuilder code, String indent, QueryPlan plan) {
+        code.append(indent).append("for (uint32_t slot = 0; slot < ").append(plan.groupTableSize).append(getLimitCheck(plan)).append("; slot++) {\n");
+        indent += "    ";
+        code.append(indent).append(plan.getSymbol("groupSlot")).append("* group = &").append(plan.getSymbol("groupTable")).append("[slot];\n");
+        code.append(indent).append("if (!group->used) continue;\n");
+        appendFusedGroupOutput(code, indent, plan, "group->");
+        indent = indent.substring(0, indent.length() - 4);
+        code.append(indent).append("}\n");
+    }
+
+    private void appendUngroupedReport(StringBuilder code, String indent, QueryPlan plan) {
+        // Other output modes leave the count in ungroupedRecords for the caller
+        if (!plan.isHashGrouped() || outputMode != OutputMode.CSV) return;
+        String ungroupedRecords = plan.getSymbol("ungroupedRecords");
+        code.append(indent).append("if (").append(ungroupedRecords).append(" > 0) printf(\"").append(plan.rowLabel.isEmpty() ? "" : plan.rowLabel + ": ").append("%lu records were not grouped, as there were more than ").append(plan.maxGroups).append(" groups\\n\", (unsigned long)").append(ungroupedRecords).append(");\n");
+    }
+
+    /**
+     * Operator that reads its input into the group table, then outputs one group per call to next in the layout of the
+     * aggregate schema. When some GROUP BY expressions follow the key order, the table holds one run of records with the
+     * same keys for them at a time, and the record that starts the next run is kept until the table is output
+     */
+    private String getHashAggregateFunctions(QueryPlan plan) {
+        Schema aggregateSchema = plan.aggregateSchema;
+        boolean hasRuns = !plan.getGroupKeys(true).isEmpty();
+        StringBuilder code = new StringBuilder();
+        code.append("uint32_t nextGroupSlot = 0;\n");
+        code.append("int8_t hashAggregateRecord[").append(aggregateSchema.getRecordSize()).append("];\n");
+        if (hasRuns) {
+            code.append("int8_t hasPendingRecord = 0;\n");
+            code.append("int8_t isInputDone = 0;\n");
+            code.append("int8_t hasGroup = 0;\n");
+            for (int k : plan.getGroupKeys(true)) {
+                code.append(getGroupKeyType(plan, k)).append(" ").append(getGroupKeyName(plan, "groupKey", k)).append(" = 0;\n");
+            }
+        }
+        code.append("\n");
+
+        code.append("void initHashAggregate(embedDBOperator* op) {\n");
+        String indent = "    ";
+        code.append(indent).append("op->input->init(op->input);\n");
+        StringJoiner colSizes = new StringJoiner(", ");
+        StringJoiner colSignedness = new StringJoiner(", ");
+        for (int j = 0; j < plan.aggregates.size(); j++) {
+            int colSize = getAggregateColSize(plan, j);
+            boolean isSigned = plan.aggregates.get(j).isGroupColumn() ? !aggregateSchema.getColumn(j).dataType.startsWith("u") : colSize < 0;
+            colSizes.add(String.valueOf(Math.abs(colSize)));
+            colSignedness.add(isSigned ? "embedDB_COLUMN_SIGNED" : "embedDB_COLUMN_UNSIGNED");
+        }
+        code.append(indent).append("int8_t colSizes[] = {").append(colSizes).append("};\n");
+        code.append(indent).append("int8_t colSignedness[] = {").append(colSignedness).append("};\n");
+        code.append(indent).append("op->schema = embedDBCreateSchema(").append(plan.aggregates.size()).append(", colSizes, colSignedness);\n");
+        code.append(indent).append("op->recordBuffer = hashAggregateRecord;\n");
+        if (hasRuns) {
+            code.append(indent).append("ungroupedRecords = 0;\n");
+            code.append(indent).append("nextGroupSlot = ").append(plan.groupTableSize).append(";\n");
+            code.append(indent).append("hasPendingRecord = 0;\n");
+            code.append(indent).append("isInputDone = 0;\n");
+            code.append("}\n\n");
+
+            code.append("int8_t nextHashAggregate(embedDBOperator* op) {\n");
+            code.append(indent).append("while (1) {\n");
+            indent += "    ";
+            appendHashAggregateOutput(code, indent, plan);
+            code.append(indent).append("if (isInputDone) return 0;\n\n");
+            code.append(indent).append("// Group the records of the next run\n");
+            appendClearGroupTable(code, indent, plan);
+            code.append(indent).append("nextGroupSlot = 0;\n");
+            code.append(indent).append("hasGroup = 0;\n");
+            code.append(indent).append("int8_t* record = (int8_t*)op->input->recordBuffer;\n");
+            code.append(indent).append("while (hasPendingRecord || exec(op->input)) {\n");
+            code.append(indent).append("    hasPendingRecord = 0;\n");
+            appendLoadAggregateColumns(code, indent + "    ", plan, new HashSet<>());
+            appendGroupKeys(code, indent + "    ", plan);
+            code.append(indent).append("    if (hasGroup && ").append(getRunChangedCondition(plan)).append(") {\n");
+            code.append(indent).append("        hasPendingRecord = 1;\n");
+            code.append(indent).append("        break;\n");
+            code.append(indent).append("    }\n");
+            appendRunStart(code, indent + "    ", plan);
+            appendGroupTableUpdate(code, indent + "    ", plan);
+            code.append(indent).append("}\n");
+            code.append(indent).append("if (!hasPendingRecord) isInputDone = 1;\n");
+            indent = indent.substring(0, indent.length() - 4);
+            code.append(indent).append("}\n");
+            code.append("}\n\n");
+        } else {
+            code.append("\n");
+            code.append(indent).append("// Group every input record\n");
+            appendClearGroupTable(code, indent, plan);
+            code.append(indent).append("ungroupedRecords = 0;\n");
+            code.append(indent).append("nextGroupSlot = 0;\n");
+            code.append(indent).append("int8_t* record = (int8_t*)op->input->recordBuffer;\n");
+            code.append(indent).append("while (exec(op->input)) {\n");
+            appendLoadAggregateColumns(code, indent + "    ", plan, new HashSet<>());
+            appendGroupKeys(code, indent + "    ", plan);
+            appendGroupTableUpdate(code, indent + "    ", plan);
+            code.append(indent).append("}\n");
+            code.append("}\n\n");
+
+            code.append("int8_t nextHashAggregate(embedDBOperator* op) {\n");
+            appendHashAggregateOutput(code, indent, plan);
+            code.append(indent).append("return 0;\n");
+            code.append("}\n\n");
+        }
+
+        code.append("void closeHashAggregate(embedDBOperator* op) {\n");
+        code.append(indent).append("op->input->close(op->input);\n");
+        code.append(indent).append("embedDBFreeSchema(&op->schema);\n");
+        code.append(indent).append("op->recordBuffer = NULL;\n");
+        code.append("}\n");
+        return code.toString();
+    }
+
+    /**
+     * Copies the next group in the table to the record buffer of the operator and returns
+     */
+    private void appendHashAggregateOutput(StringBuilder code, String indent, QueryPlan plan) {
+        Schema aggregateSchema = plan.aggregateSchema;
+        code.append(indent).append("while (nextGroupSlot < ").append(plan.groupTableSize).append(") {\n");
+        code.append(indent).append("    groupSlot* group = &groupTable[nextGroupSlot++];\n");
+        code.append(indent).append("    if (!group->used) continue;\n");
+        for (int j = 0; j < plan.aggregates.size(); j++) {
+            String dataType = aggregateSchema.getColumn(j).dataType;
+            code.append(indent).append("    ").append(dataType).append(" value").append(j).append(" = ").append(getFusedAggregateValue(plan, j, "group->")).append(";\n");
+            code.append(indent).append("    memcpy((int8_t*)op->recordBuffer + ").append(aggregateSchema.getColOffset(j)).append(", &value").append(j).append(", sizeof(").append(dataType).append("));\n");
+        }
+        code.append(indent).append("    return 1;\n");
+        code.append(indent).append("}\n");
+    }
+
+    /**
+     * Point lookup for a query without aggregation whose key selections allow exactly one key.
+     * The record is read with embedDBGet, so no iterator, operator or schema is created.
+     */
+    private StringBuilder getPointLookupCode(QueryPlan plan) {
+        StringBuilder code = new StringBuilder();
+        Schema tableSchema = plan.tableSchema;
+        Schema.Column keyColumn = tableSchema.getColumn(0);
+        boolean isStatic = allocationMode == AllocationMode.STATIC;
+        String indent = "";
+
+        // Create function header
+        code.append(indent).append("void execOperator(embedDBState* state) {\n");
+        indent += "    ";
+
+        // Put the key at the start of the record and read the data directly after it
+        if (isStatic) {
+            code.append(indent).append("static embedDBQueryStorage storage;\n");
+            code.append(indent).append("int8_t* record = storage.record;\n");
+        } else {
+            code.append(indent).append("int8_t record[").append(tableSchema.getRecordSize()).append("];\n");
+        }
+        code.append(indent).append(keyColumn.dataType).append("* key = (").append(keyColumn.dataType).append("*)record;\n");
+        code.append(indent).append("*key = ").append(plan.getIteratorBound("minKey").value).append(";\n\n");
+
+        code.append(indent).append("if (embedDBGet(state, key, record + ").append(keyColumn.size).append(") == 0) {\n");
+        indent += "    ";
+
+        // Data index bounds are checked like any other selection
+        ArrayList<LogicalSelection> selections = new ArrayList<>();
+        for (IteratorBound bound : plan.iteratorBounds) {
+            if (bound.name.equals("minData")) selections.add(new LogicalSelection(bound.colNum, OpTypes.GREATER_EQUAL, bound.value));
+            if (bound.name.equals("maxData")) selections.add(new LogicalSelection(bound.colNum, OpTypes.SMALLER_EQUAL, bound.value));
+        }
+        selections.addAll(plan.nonIndexSelections);
+
+        Set<Integer> loadedColumns = new HashSet<>();
+        int numConditions = 0;
+        for (List<LogicalSelection> columnSelections : groupSelectionsByColumn(selections).values()) {
+            int colNum = columnSelections.get(0).colNum;
+            appendLoadColumn(code, indent, tableSchema, colNum, loadedColumns);
+            code.append(indent).append("if (").append(getColumnCondition(columnSelections, tableSchema.getColumn(colNum).name)).append(") {\n");
+            indent += "    ";
+            numConditions++;
+        }
+        if (!plan.expressionSelections.isEmpty()) {
+            code.append(indent).append("if (").append(plan.getSymbol("wherePredicate")).append("(record)) {\n");
+            indent += "    ";
+            numConditions++;
+        }
+
+        appendPrintColumns(code, indent, plan, loadedColumns);
+
+        // Close conditions
+        for (int i = 0; i <= numConditions; i++) {
+            indent = indent.substring(0, indent.length() - 4);
+            code.append(indent).append("}\n");
+        }
+        appendOutputEnd(code, indent, plan);
+
+        // Close function
+        //noinspection ConstantValue
+        indent = indent.substring(0, indent.length() - 4);
+        code.append(indent).append("}\n");
+
+        prependStorageStruct(code, List.of("int8_t record[" + tableSchema.getRecordSize() + "];"));
+
+        return code;
+    }
+
+    /**
+     * Scan for a query without aggregation ordered by the key descending. Records are stored in key order, so the
+     * records still in the write buffer are read first, then the pages from the newest to the oldest, each from its
+     * last record. Reading stops below the minimum key or once LIMIT rows are output.
+     */
+    private StringBuilder getReverseScanCode(QueryPlan plan) {
+        StringBuilder code = new StringBuilder();
+        Schema tableSchema = plan.tableSchema;
+        Schema.Column keyColumn = tableSchema.getColumn(0);
+        boolean isStatic = allocationMode == AllocationMode.STATIC;
+        String indent = "";
+
+        // Create function header
+        code.append(indent).append("void execOperator(embedDBState* state) {\n");
+        indent += "    ";
+
+        for (String line : plan.accessPathComment)
+            code.append(indent).append("// ").append(line).append("\n");
+
+        if (isStatic) {
+            code.append(indent).append("static embedDBQueryStorage storage;\n");
+            code.append(indent).append("int8_t* record = storage.record;\n");
+        } else {
+            code.append(indent).append("int8_t record[").append(tableSchema.getRecordSize()).append("];\n");
+        }
+        code.append(indent).append("int8_t done = 0;\n");
+        if (plan.limit >= 0) {
+            code.append(indent).append("uint32_t rows = 0;\n");
+        }
+
+        code.append("\n");
+        indent = appendReversePageLoops(code, indent, tableSchema, "state->nextDataPageId + 1", plan.getIteratorBound("maxKey"));
+
+        // The key bounds end the scan instead of being checked like the other selections
+        Set<Integer> loadedColumns = new HashSet<>();
+        appendLoadColumn(code, indent, tableSchema, 0, loadedColumns);
+        ArrayList<LogicalSelection> selections = new ArrayList<>();
+        for (IteratorBound bound : plan.iteratorBounds) {
+            switch (bound.name) {
+                case "maxKey" -> code.append(indent).append("if (").append(keyColumn.name).append(" > ").append(bound.value).append(") continue;\n");
+                case "minKey" -> {
+                    code.append(indent).append("if (").append(keyColumn.name).append(" < ").append(bound.value).append(") {\n");
+                    code.append(indent).append("    done = 1;\n");
+                    code.append(indent).append("    continue;\n");
+                    code.append(indent).append("}\n");
+                }
+                case "minData" -> selections.add(new LogicalSelection(bound.colNum, OpTypes.GREATER_EQUAL, bound.value));
+                case "maxData" -> selections.add(new LogicalSelection(bound.colNum, OpTypes.SMALLER_EQUAL, bound.value));
+            }
+        }
+        if (plan.iteratorRanges != null) {
+            selections.add(new LogicalSelection(plan.iteratorRanges.colNum, plan.iteratorRanges.ranges));
+        }
+        selections.addAll(plan.nonIndexSelections);
+
+        for (List<LogicalSelection> columnSelections : groupSelectionsByColumn(selections).values()) {
+            int colNum = columnSelections.get(0).colNum;
+            appendLoadColumn(code, indent, tableSchema, colNum, loadedColumns);
+            code.append(indent).append("if (!(").append(getColumnCondition(columnSelections, tableSchema.getColumn(colNum).name)).append(")) continue;\n");
+        }
+        appendPredicateCheck(code, indent, plan, "continue");
+
+        appendPrintColumns(code, indent, plan, loadedColumns);
+        if (plan.limit >= 0) {
+            code.append(indent).append("if (++rows == ").append(plan.limit).append(") done = 1;\n");
+        }
+
+        // Close loops over the records of a page and over the pages
+        for (int i = 0; i < 2; i++) {
+            indent = indent.substring(0, indent.length() - 4);
+            code.append(indent).append("}\n");
+        }
+        appendOutputEnd(code, indent, plan);
+
+        // Close function
+        //noinspection ConstantValue
+        indent = indent.substring(0, indent.length() - 4);
+        code.append(indent).append("}\n");
+
+        prependStorageStruct(code, List.of("int8_t record[" + tableSchema.getRecordSize() + "];"));
+
+        return code;
+    }
+
+    /**
+     * Answers a key aggregate without scanning the table. Records are stored in key order, so MIN is the first record
+     * the iterator returns for the key range, and MAX the first record in the range found reading backwards from the
+     * newest one. COUNT adds up the record counts in the page headers.
+     */
+    private StringBuilder getKeyAggregateCode(QueryPlan plan) {
+        StringBuilder code = new StringBuilder();
+        Schema tableSchema = plan.tableSchema;
+        Schema.Column keyColumn = tableSchema.getColumn(0);
+        String keyType = keyColumn.dataType;
+        boolean isStatic = allocationMode == AllocationMode.STATIC;
+        ArrayList<String> storageFields = new ArrayList<>();
+        IteratorBound minKey = plan.getIteratorBound("minKey"), maxKey = plan.getIteratorBound("maxKey");
+        String indent = "";
+
+        // Create function header
+        code.append(indent).append("void execOperator(embedDBState* state) {\n");
+        indent += "    ";
+
+        if (isStatic) {
+            code.append(indent).append("static embedDBQueryStorage storage;\n");
+            storageFields.add("int8_t record[" + tableSchema.getRecordSize() + "];");
+            code.append(indent).append("int8_t* record = storage.record;\n");
+        } else {
+            code.append(indent).append("int8_t record[").append(tableSchema.getRecordSize()).append("];\n");
+        }
+        code.append(indent).append("int8_t hasGroup = 0;\n");
+        for (int j = 0; j < plan.aggregates.size(); j++) {
+            code.append(indent).append(plan.aggregates.get(j).type == OpTypes.COUNT ? "int32_t" : keyType).append(" agg").append(j).append(" = 0;\n");
+        }
+
+        for (int j = 0; j < plan.aggregates.size(); j++) {
+            switch (plan.aggregates.get(j).type) {
+                case OpTypes.MIN -> {
+                    code.append("\n").append(indent).append("// The first record of the key range has the smallest key\n");
+                    String it = isStatic ? "it" : "&it";
+                    if (isStatic) {
+                        storageFields.add("embedDBIterator it;");
+                        code.append(indent).append("embedDBIterator* it = &storage.it;\n");
+                    } else {
+                        code.append(indent).append("embedDBIterator it;\n");
+                    }
+                    for (IteratorBound bound : new IteratorBound[]{minKey, maxKey}) {
+                        if (bound == null) continue;
+                        if (isStatic) {
+                            storageFields.add(keyType + " " + bound.name + ";");
+                            code.append(indent).append("storage.").append(bound.name).append(" = ").append(bound.value).append(";\n");
+                        } else {
+                            code.append(indent).append(keyType).append(" ").append(bound.name).append(" = ").append(bound.value).append(";\n");
+                        }
+                    }
+                    for (String boundName : new String[]{"minKey", "maxKey", "minData", "maxData"}) {
+                        code.append(indent).append(isStatic ? "it->" : "it.").append(boundName).append(" = ");
+                        if (plan.getIteratorBound(boundName) != null) {
+                            code.append(isStatic ? "&storage." : "&").append(boundName).append(";\n");
+                        } else {
+                            code.append("NULL;\n");
+                        }
+                    }
+                    code.append(indent).append("embedDBInitIterator(state, ").append(it).append(");\n");
+                    code.append(indent).append("if (embedDBNext(state, ").append(it).append(", record, record + ").append(keyColumn.size).append(")) {\n");
+                    code.append(indent).append("    hasGroup = 1;\n");
+                    code.append(indent).append("    agg").append(j).append(" = *((").append(keyType).append("*)record);\n");
+                    code.append(indent).append("}\n");
+                    code.append(indent).append("embedDBCloseIterator(").append(it).append(");\n");
+                }
+                case OpTypes.MAX -> {
+                    code.append("\n").append(indent).append("// Reading backwards, the first record at or below the maximum key has the largest key\n");
+                    code.append(indent).append("int8_t done = 0;\n");
+                    String endPageId = "state->nextDataPageId + 1";
+                    if (maxKey != null) {
+                        // Pages are in key order, so the pages that start above the maximum key are found with a binary search instead of read one by one
+                        code.append(indent).append("uint32_t low = state->minDataPageId, high = state->nextDataPageId;\n");
+                        code.append(indent).append("while (low < high) {\n");
+                        code.append(indent).append("    uint32_t mid = low + (high - low) / 2;\n");
+                        code.append(indent).append("    if (readPage(state, mid % state->numDataPages) != 0) {\n");
+                        code.append(indent).append("        // A search that did not finish gives no bound, so the whole table is scanned\n");
+                        code.append(indent).append("        high = state->nextDataPageId;\n");
+                        code.append(indent).append("        break;\n");
+                        code.append(indent).append("    }\n");
+                        code.append(indent).append("    int8_t* page = (int8_t*)state->buffer + EMBEDDB_DATA_READ_BUFFER * state->pageSize;\n");
+                        code.append(indent).append("    if (*((").append(keyType).append("*)(page + state->headerSize)) > ").append(maxKey.value).append(") {\n");
+                        code.append(indent).append("        high = mid;\n");
+                        code.append(indent).append("    } else {\n");
+                        code.append(indent).append("        low = mid + 1;\n");
+                        code.append(indent).append("    }\n");
+                        code.append(indent).append("}\n");
+                        code.append(indent).append("uint32_t endPageId = high < state->nextDataPageId ? high : state->nextDataPageId + 1;\n");
+                        endPageId = "endPageId";
+                    }
+                    String loopIndent = appendReversePageLoops(code, indent, tableSchema, endPageId, maxKey);
+                    code.append(loopIndent).append(keyType).append(" ").append(keyColumn.name).append(" = *((").append(keyType).append("*)record);\n");
+                    if (maxKey != null) {
+                        code.append(loopIndent).append("if (").append(keyColumn.name).append(" > ").append(maxKey.value).append(") continue;\n");
+                    }
+                    String assignIndent = loopIndent;
+                    if (minKey != null) {
+                        code.append(loopIndent).append("if (").append(keyColumn.name).append(" >= ").append(minKey.value).append(") {\n");
+                        assignIndent += "    ";
+                    }
+                    code.append(assignIndent).append("hasGroup = 1;\n");
+                    code.append(assignIndent).append("agg").append(j).append(" = ").append(keyColumn.name).append(";\n");
+                    if (minKey != null) {
+                        code.append(loopIndent).append("}\n");
+                    }
+                    code.append(loopIndent).append("done = 1;\n");
+                    code.append(indent).append("    }\n");
+                    code.append(indent).append("}\n");
+                }
+                case OpTypes.COUNT -> {
+                    code.append("\n").append(indent).append("// Each page header holds the number of records in the page, and page nextDataPageId is the write buffer\n");
+                    code.append(indent).append("for (uint32_t pageId = state->minDataPageId; pageId <= state->nextDataPageId; pageId++) {\n");
+                    code.append(indent).append("    int8_t* page = (int8_t*)state->buffer + EMBEDDB_DATA_WRITE_BUFFER * state->pageSize;\n");
+                    code.append(indent).append("    if (pageId < state->nextDataPageId) {\n");
+                    code.append(indent).append("        if (readPage(state, pageId % state->numDataPages) != 0) break;\n");
+                    code.append(indent).append("        page = (int8_t*)state->buffer + EMBEDDB_DATA_READ_BUFFER * state->pageSize;\n");
+                    code.append(indent).append("    }\n");
+                    code.append(indent).append("    agg").append(j).append(" += EMBEDDB_GET_COUNT(page);\n");
+                    code.append(indent).append("}\n");
+                    code.append(indent).append("if (agg").append(j).append(" > 0) hasGroup = 1;\n");
+                }
+            }
+        }
+
+        code.append("\n").append(indent).append("if (hasGroup) {\n");
+        appendFusedGroupOutput(code, indent + "    ", plan, "");
+        code.append(indent).append("}\n");
+        appendOutputEnd(code, indent, plan);
+
+        // Close function
+        //noinspection ConstantValue
+        indent = indent.substring(0, indent.length() - 4);
+        code.append(indent).append("}\n");
+
+        prependStorageStruct(code, storageFields);
+
+        return code;
+    }
+
+    /**
+     * Opens the loops of a reverse scan that copy each record into record until done is set, and returns the indent
+     * inside them. The scan starts at the page before endPageId, and page nextDataPageId is the write buffer. Pages that
+     * start above the maximum key are skipped without copying their records.
+     */
+    private String appendReversePageLoops(StringBuilder code, String indent, Schema tableSchema, String endPageId, IteratorBound maxKey) {
+        Schema.Column keyColumn = tableSchema.getColumn(0);
+        code.append(indent).append("for (uint32_t pageId = ").append(endPageId).append("; !done && pageId-- > state->minDataPageId;) {\n");
+        indent += "    ";
+        appendPageRead(code, indent, "break");
+        if (maxKey != null) {
+            code.append(indent).append("if (*((").append(keyColumn.dataType).append("*)(page + state->headerSize)) > ").append(maxKey.value).append(") continue;\n");
+        }
+        code.append(indent).append("for (int32_t i = EMBEDDB_GET_COUNT(page) - 1; !done && i >= 0; i--) {\n");
+        indent += "    ";
+        code.append(indent).append("memcpy(record, page + state->headerSize + i * state->recordSize, ").append(tableSchema.getRecordSize()).append(");\n");
+        return indent;
+    }
+
+    /**
+     * Points page at the page pageId, which is still in the write buffer if it is the page being filled
+     */
+    private void appendPageRead(StringBuilder code, String indent, String onError) {
+        code.append(indent).append("int8_t* page = (int8_t*)state->buffer + EMBEDDB_DATA_WRITE_BUFFER * state->pageSize;\n");
+        code.append(indent).append("if (pageId < state->nextDataPageId) {\n");
+        code.append(indent).append("    if (readPage(state, pageId % state->numDataPages) != 0) ").append(onError).append(";\n");
+        code.append(indent).append("    page = (int8_t*)state->buffer + EMBEDDB_DATA_READ_BUFFER * state->pageSize;\n");
+        code.append(indent).append("}\n");
+    }
+
+    /**
+     * Loops over the pages in key order and over the records of each page its zone maps do not rule out, copying each
+     * record to record. Returns the indent of the loop body
+     */
+    private String appendZoneMapPageLoops(StringBuilder code, String indent, QueryPlan plan) {
+        code.append("\n").append(indent).append("for (uint32_t pageId = state->minDataPageId; pageId <= state->nextDataPageId").append(getLimitCheck(plan)).append("; pageId++) {\n");
+        indent += "    ";
+        appendPageRead(code, indent, "break");
+        appendZoneMapCheck(code, indent, plan, "continue", "break");
+        code.append(indent).append("for (uint32_t i = 0; i < count").append(getLimitCheck(plan)).append("; i++) {\n");
+        indent += "    ";
+        code.append(indent).append("memcpy(record, page + state->headerSize + i * state->recordSize, ").append(plan.tableSchema.getRecordSize()).append(");\n");
+        return indent;
+    }
+
+    /**
+     * Declares count as the number of records on page, and skips the page when it has none or its zone maps show that
+     * none of them pass the selections. The smallest and largest key of a page are those of its first and last record,
+     * and as pages are in key order, stop ends the scan at the first page past the largest key of the selections
+     */
+    private void appendZoneMapCheck(StringBuilder code, String indent, QueryPlan plan, String skip, String stop) {
+        Schema tableSchema = plan.tableSchema;
+        code.append(indent).append("uint32_t count = EMBEDDB_GET_COUNT(page);\n");
+        code.append(indent).append("if (count == 0) ").append(skip).append(";\n");
+        List<String> conditions = new ArrayList<>();
+        for (List<LogicalSelection> columnSelections : groupSelectionsByColumn(plan.nonIndexSelections).values()) {
+            int colNum = columnSelections.get(0).colNum;
+            if (colNum != 0 && !plan.zoneMapOffsets.containsKey(colNum)) continue;
+            List<long[]> ranges = List.of(new long[]{Long.MIN_VALUE, Long.MAX_VALUE});
+            for (LogicalSelection ls : columnSelections)
+                ranges = intersectRanges(ranges, ls.getRanges());
+            if (ranges.size() == 1 && ranges.get(0)[0] == Long.MIN_VALUE && ranges.get(0)[1] == Long.MAX_VALUE) continue;
+
+            Schema.Column column = tableSchema.getColumn(colNum);
+            String min = column.name + "Min", max = column.name + "Max";
+            String minOffset, maxOffset;
+            if (colNum == 0) {
+                minOffset = "state->headerSize";
+                maxOffset = "state->headerSize + (count - 1) * state->recordSize";
+            } else {
+                minOffset = String.valueOf(plan.zoneMapOffsets.get(colNum));
+                maxOffset = String.valueOf(plan.zoneMapOffsets.get(colNum) + column.size);
+            }
+            code.append(indent).append(column.dataType).append(" ").append(min).append(" = *((").append(column.dataType).append("*)(page + ").append(minOffset).append("));\n");
+            if (colNum == 0 && !ranges.isEmpty() && ranges.get(ranges.size() - 1)[1] != Long.MAX_VALUE) {
+                code.append(indent).append("if (").append(min).append(" > ").append(ranges.get(ranges.size() - 1)[1]).append(") ").append(stop).append(";\n");
+            }
+            code.append(indent).append(column.dataType).append(" ").append(max).append(" = *((").append(column.dataType).append("*)(page + ").append(maxOffset).append("));\n");
+
+            // The page may hold a record that passes if its values overlap one of the ranges
+            StringJoiner anyRange = new StringJoiner(" || ");
+            for (long[] range : ranges) {
+                StringJoiner overlaps = new StringJoiner(" && ");
+                if (range[0] != Long.MIN_VALUE) overlaps.add(max + " >= " + range[0]);
+                if (range[1] != Long.MAX_VALUE) overlaps.add(min + " <= " + range[1]);
+                anyRange.add(ranges.size() > 1 && range[0] != Long.MIN_VALUE && range[1] != Long.MAX_VALUE ? "(" + overlaps + ")" : overlaps.toString());
+            }
+            conditions.add(ranges.isEmpty() ? "0" : anyRange.toString());
+        }
+        if (conditions.isEmpty()) return;
+        StringJoiner condition = new StringJoiner(" && ");
+        for (String columnCondition : conditions)
+            condition.add(conditions.size() > 1 && columnCondition.contains(" || ") ? "(" + columnCondition + ")" : columnCondition);
+        code.append(indent).append("if (!(").append(condition).append(")) ").append(skip).append(";\n");
+    }
+
+    /**
+     * Condition to add to a loop in fused code so it stops once LIMIT rows are output, or nothing without a LIMIT
+     */
+    private String getLimitCheck(QueryPlan plan) {
+        return plan.limit >= 0 ? " && " + plan.getStatePrefix() + "rows < " + plan.limit : "";
+    }
+
+    private void appendPrintColumns(StringBuilder code, String indent, QueryPlan plan, Set<Integer> loadedColumns) {
+        QuerySpecification query = plan.query;
+        ArrayList<String> values = new ArrayList<>();
+        for (int i = 0; i < query.indexLimitVisible; i++) {
+            Expression columnExpression = query.exprColumns[i];
+            if (columnExpression.getType() != OpTypes.COLUMN) {
+                throw new RuntimeException("Only columns can be selected in a query without aggregation");
+            }
+            int colNum = columnExpression.getColumnIndex();
+            appendLoadColumn(code, indent, plan.tableSchema, colNum, loadedColumns);
+            values.add(plan.tableSchema.getColumn(colNum).name);
+        }
+        appendOutputRow(code, indent, plan, plan.outputSchema.colDataTypes(), values);
+    }
+
+    private void appendLoadColumn(StringBuilder code, String indent, Schema schema, int colNum, Set<Integer> loadedColumns) {
+        if (!loadedColumns.add(colNum)) return;
+        Schema.Column column = schema.getColumn(colNum);
+        code.append(indent).append(column.dataType).append(" ").append(column.name).append(" = *((").append(column.dataType).append("*)(record + ").append(schema.getColOffset(colNum)).append("));\n");
+    }
+
+    /**
+     * Prints a group, whose aggregate state is in variables starting with prefix
+     */
+    private void appendFusedGroupOutput(StringBuilder code, String indent, QueryPlan plan, String prefix) {
+        ArrayList<String> values = new ArrayList<>();
+        for (int i = 0; i < plan.outputSchema.getNumCols(); i++) {
+            values.add(getFusedAggregateValue(plan, i, prefix));
+        }
+
+        if (plan.hasHaving) {
+            code.append(indent).append("if (").append(getFusedAggregateValue(plan, plan.havingColumnNum, prefix)).append(" ").append(getComparisonOperator(plan.havingType)).append(" ").append(plan.havingValue).append(") {\n");
+            appendOutputRow(code, indent + "    ", plan, plan.outputSchema.colDataTypes(), values);
+            if (plan.limit >= 0) code.append(indent).append("    ").append(plan.getStatePrefix()).append("rows++;\n");
+            code.append(indent).append("}\n");
+        } else {
+            appendOutputRow(code, indent, plan, plan.outputSchema.colDataTypes(), values);
+            if (plan.limit >= 0) code.append(indent).append(plan.getStatePrefix()).append("rows++;\n");
+        }
+    }
 
-                    cFunctions.put(functionName, functionCode.toString());
+    private String getFusedAggregateValue(QueryPlan plan, int aggregateNum, String prefix) {
+        AggregateColumn agg = plan.aggregates.get(aggregateNum);
+        return switch (agg.type) {
+            case OpTypes.COLUMN -> getGroupKeyValue(plan, agg.groupNum, prefix);
+            case OpTypes.AVG -> "(float)" + prefix + "agg" + aggregateNum + "Sum / " + prefix + "agg" + aggregateNum + "Count";
+            default -> prefix + "agg" + aggregateNum;
+        };
+    }
 
-                    operatorCode.append(indent).append("embedDBAggregateFunc* group = (embedDBAggregateFunc*)calloc(1, sizeof(embedDBAggregateFunc));\n");
-                    localFreeVars.add("group");
-                    operatorCode.append(indent).append("group->compute = ").append(functionName).append(";\n");
-                    int colSize = tableSchema.getColSize(colNum);
-                    operatorCode.append(indent).append("group->colSize = ").append(colSize).append(";\n");
+    private String getGroupKeyType(QueryPlan plan, int groupNum) {
+        ArithmeticExpression expression = plan.groupByExpressions.get(groupNum);
+        return expression.isFloat() ? "double" : plan.tableSchema.getColumn(expression.getCol()).dataType;
+    }
 
-                    aggFuncs.add("group");
+    /**
+     * Name of a variable for one GROUP BY expression, numbered only when there are several
+     */
+    private static String getGroupKeyName(QueryPlan plan, String name, int groupNum) {
+        return plan.groupByExpressions.size() == 1 ? name : name + groupNum;
+    }
 
-                    Schema.Column oldColumn = tableSchema.getColumn(colNum);
-                    newSchema.addColumn(colName, oldColumn.size, groupByExpression.isFloat());
-                }
-            }
+    /**
+     * Key of the current group for a GROUP BY expression. Expressions of consecutive groups are in variables, and the
+     * others in the group slot, in a composite key when there are several
+     */
+    private static String getGroupKeyValue(QueryPlan plan, int groupNum, String prefix) {
+        if (plan.isSlidingWindow()) return "(" + plan.getStatePrefix() + "groupKey - " + (plan.windowSize - plan.windowSlide) + ")";
+        if (plan.isRunKey(groupNum)) return plan.getStatePrefix() + getGroupKeyName(plan, "groupKey", groupNum);
+        if (plan.getGroupKeys(false).size() == 1) return prefix + "groupKey";
+        return prefix + "groupKey.key" + groupNum;
+    }
 
-            // Create aggregate operator
-            operatorCode.append(indent).append("embedDBAggregateFunc* aggFuncs = (embedDBAggregateFunc*)malloc(").append(aggFuncs.size()).append("*sizeof(embedDBAggregateFunc));\n");
-            freeVars.add("aggFuncs");
-            for (int i = 0; i < aggFuncs.size(); i++) {
-                String aggFunc = aggFuncs.get(i);
-                operatorCode.append(indent).append("aggFuncs[").append(i).append("] = *").append(aggFunc).append(";\n");
+    /**
+     * Declarations of the variables holding the state of the groups that are consecutive records, without a semicolon.
+     * A tumbling window keeps where it starts, and a sliding window a ring of the aggregates of its panes, with the
+     * type of a pane added to the C functions
+     */
+    private List<String> getGroupStateFields(QueryPlan plan, OrderedHashMap<String, String> cFunctions) {
+        ArrayList<String> fields = new ArrayList<>();
+        if (!plan.isGrouped() || plan.isHashGrouped() && plan.getGroupKeys(true).isEmpty()) return fields;
+        fields.add("int8_t hasGroup");
+        for (int k : plan.getGroupKeys(true)) {
+            fields.add(getGroupKeyType(plan, k) + " " + getGroupKeyName(plan, "groupKey", k));
+        }
+        if (plan.getTumblingWindowWidth() > 0) {
+            fields.add(plan.tableSchema.getColumn(0).dataType + " windowStart");
+        }
+        if (plan.isSlidingWindow()) {
+            String windowPane = plan.getSymbol("windowPane");
+            StringBuilder code = new StringBuilder("typedef struct {\n");
+            code.append("    uint32_t records;\n");
+            for (String field : getAggregateStateFields(plan)) {
+                code.append("    ").append(field).append(";\n");
             }
-            operatorCode.append(indent).append("embedDBOperator* aggOp = createAggregateOperator(").append(topLevelOperator).append(", groupFunction, aggFuncs, ").append(aggFuncs.size()).append(");\n");
-            topLevelOperator = "aggOp";
-
-            // Update schema since the aggregate operator completely redefines it
-            tableSchema = newSchema;
+            code.append("} ").append(windowPane).append(";\n");
+            cFunctions.put(windowPane, code.toString());
+            fields.add("uint32_t openPane");
+            fields.add("uint32_t windowRecords");
+            fields.add(windowPane + " panes[" + plan.getWindowPanes() + "]");
+        } else if (!plan.isHashGrouped()) {
+            fields.addAll(getAggregateStateFields(plan));
+        }
+        return fields;
+    }
 
-            // Make sure the types of the output schema match
-            for (int i = 0; i < outputSchema.getNumCols(); i++) {
-                Schema.Column column = outputSchema.getColumn(i);
-                Schema.Column newColumn = tableSchema.getColumn(column.name);
-                if (newColumn != null) {
-                    column.dataType = newColumn.dataType;
+    /**
+     * Declarations of the variables holding the state of each aggregate, without a semicolon
+     */
+    private List<String> getAggregateStateFields(QueryPlan plan) {
+        ArrayList<String> fields = new ArrayList<>();
+        for (int j = 0; j < plan.aggregates.size(); j++) {
+            AggregateColumn agg = plan.aggregates.get(j);
+            switch (agg.type) {
+                case OpTypes.MIN, OpTypes.MAX -> fields.add(plan.tableSchema.getColumn(agg.colNum).dataType + " agg" + j);
+                case OpTypes.COUNT -> fields.add("int32_t agg" + j);
+                case OpTypes.SUM -> fields.add("int64_t agg" + j);
+                case OpTypes.AVG -> {
+                    fields.add("int64_t agg" + j + "Sum");
+                    fields.add("uint32_t agg" + j + "Count");
                 }
             }
         }
+        return fields;
+    }
 
-        // Apply selection for HAVING
-        if (query.havingColumnCount == 1) {
-            Expression havingExpression = query.exprColumns[query.indexStartHaving];
-            if (!(havingExpression instanceof ExpressionLogical)) {
-                throw new RuntimeException("HAVING clause must be a logical expression");
+    /**
+     * Starts the aggregate state of a group with the current record, whose columns are already loaded
+     */
+    private void appendAggregateReset(StringBuilder code, String indent, QueryPlan plan, String prefix) {
+        for (int j = 0; j < plan.aggregates.size(); j++) {
+            AggregateColumn agg = plan.aggregates.get(j);
+            String name = prefix + "agg" + j;
+            switch (agg.type) {
+                case OpTypes.MIN, OpTypes.MAX -> code.append(indent).append(name).append(" = ").append(plan.tableSchema.getColumn(agg.colNum).name).append(";\n");
+                case OpTypes.COUNT, OpTypes.SUM -> code.append(indent).append(name).append(" = 0;\n");
+                case OpTypes.AVG -> {
+                    code.append(indent).append(name).append("Sum = 0;\n");
+                    code.append(indent).append(name).append("Count = 0;\n");
+                }
             }
+        }
+    }
 
-            Expression left = havingExpression.getLeftNode();
-            Expression right = havingExpression.getRightNode();
+    private void appendAggregateUpdate(StringBuilder code, String indent, QueryPlan plan, String prefix) {
+        for (int j = 0; j < plan.aggregates.size(); j++) {
+            AggregateColumn agg = plan.aggregates.get(j);
+            String name = prefix + "agg" + j;
+            String colName = agg.colNum >= 0 ? plan.tableSchema.getColumn(agg.colNum).name : null;
+            switch (agg.type) {
+                case OpTypes.MIN -> code.append(indent).append("if (").append(colName).append(" < ").append(name).append(") ").append(name).append(" = ").append(colName).append(";\n");
+                case OpTypes.MAX -> code.append(indent).append("if (").append(colName).append(" > ").append(name).append(") ").append(name).append(" = ").append(colName).append(";\n");
+                case OpTypes.COUNT -> code.append(indent).append(name).append("++;\n");
+                case OpTypes.SUM -> code.append(indent).append(name).append(" += ").append(colName).append(";\n");
+                case OpTypes.AVG -> {
+                    code.append(indent).append(name).append("Sum += ").append(colName).append(";\n");
+                    code.append(indent).append(name).append("Count++;\n");
+                }
+            }
+        }
+    }
 
-            long value;
-            if (left instanceof ExpressionColumn && right instanceof ExpressionValue) {
-                value = getIntValue(right);
-            } else if (left instanceof ExpressionValue && right instanceof ExpressionColumn) {
-                value = getIntValue(left);
+    private ArrayList<LogicalSelection> findAllSelections(QueryPlan plan, OrderedHashMap<String, String> cFunctions) {
+        // Parse the WHERE clause as written, since HSQLDB splits an OR into separate range variable conditions and
+        // turns an IN list into a join. Use a set to avoid duplicates
+        Set<LogicalSelection> logicalSelections = new HashSet<>();
+        List<Expression> expressionComparisons = new ArrayList<>();
+        if (plan.query.queryCondition != null) getLogicalSelections(plan.query.queryCondition, logicalSelections, expressionComparisons);
+
+        // A comparison of an expression of one column with a constant becomes a range of the column if the expression
+        // never decreases, and the other comparisons are checked by the predicate function
+        for (Expression comparison : expressionComparisons) {
+            ArithmeticExpression left = getGroupBy(comparison.getLeftNode(), plan.tableSchema, cFunctions);
+            ArithmeticExpression right = getGroupBy(comparison.getRightNode(), plan.tableSchema, cFunctions);
+            List<LogicalSelection> inverted = null;
+            if (right.type == OpTypes.VALUE && !right.isFloat()) {
+                inverted = invertComparison(plan.tableSchema, left, comparison.getType(), (long) right.value);
+            } else if (left.type == OpTypes.VALUE && !left.isFloat()) {
+                inverted = invertComparison(plan.tableSchema, right, getSwappedComparison(comparison.getType()), (long) left.value);
+            }
+            if (inverted != null) {
+                logicalSelections.addAll(inverted);
             } else {
-                throw new RuntimeException("HAVING expression invalid");
+                plan.expressionSelections.add(new ExpressionSelection(left, comparison.getType(), right));
             }
-
-            // Allocate value
-            String valueVariableName = "havingValue";
-            String dataType = tableSchema.getColumn(havingColumnNum).dataType;
-            operatorCode.append(indent).append(dataType).append("* ").append(valueVariableName).append(" = (").append(dataType).append("*)malloc(sizeof(").append(dataType).append("));\n");
-            freeVars.add(valueVariableName);
-
-            // Set value
-            operatorCode.append(indent).append("*").append(valueVariableName).append(" = ").append(value).append(";\n");
-
-            // Create selection operator
-            String type = switch (havingExpression.getType()) {
-                case OpTypes.GREATER_EQUAL -> "SELECT_GTE";
-                case OpTypes.GREATER -> "SELECT_GT";
-                case OpTypes.SMALLER -> "SELECT_LT";
-                case OpTypes.SMALLER_EQUAL -> "SELECT_LTE";
-                case OpTypes.NOT_EQUAL -> "SELECT_NEQ";
-                case OpTypes.EQUAL -> "SELECT_EQ";
-                default -> throw new RuntimeException("Unknown type");
-            };
-            operatorCode.append(indent).append("embedDBOperator* havingOp = createSelectionOperator(").append(topLevelOperator).append(", ").append(havingColumnNum).append(", ").append(type).append(", havingValue);\n");
-            topLevelOperator = "havingOp";
         }
 
-        // Init top level operator
-        operatorCode.append(indent).append(topLevelOperator).append("->init(").append(topLevelOperator).append(");\n\n");
-
-        // Free schema
-        operatorCode.append(indent).append("embedDBFreeSchema(&schema);\n");
+        return new ArrayList<>(logicalSelections);
+    }
 
-        // Free local vars
-        for (String var : localFreeVars)
-            operatorCode.append(indent).append("free(").append(var).append(");\n");
-        operatorCode.append('\n');
+    /**
+     * Selections on the column of a comparison between an expression of the column and a constant, found by searching
+     * the values of the column for where the expression reaches the constant. Returns null unless the expression is
+     * integer arithmetic on a 32-bit column that never decreases and never overflows its C type
+     */
+    private static List<LogicalSelection> invertComparison(Schema tableSchema, ArithmeticExpression expr, int type, long value) {
+        if (expr.type == OpTypes.COLUMN) return List.of(new LogicalSelection(expr.getCol(), type, value));
+        if (type == OpTypes.NOT_EQUAL || expr.numCols() != 1 || !expr.isInteger() || !expr.isNonDecreasing()) return null;
+        int colNum = expr.getCol();
+        String dataType = tableSchema.getColumn(colNum).dataType;
+        if (!dataType.endsWith("32_t")) return null;
+        long min = getTypeRange(dataType)[0], max = getTypeRange(dataType)[1];
+
+        // As the expression never decreases, it is within its type for every value if it is for the smallest and largest
+        long reaches, passes;
+        try {
+            if (!expr.fitsDataType(min) || !expr.fitsDataType(max)) return null;
+            reaches = findFirstAtLeast(expr, min, max, value);
+            passes = findFirstAtLeast(expr, min, max, value + 1);
+        } catch (ArithmeticException e) {
+            return null;
+        }
+        long low = switch (type) {
+            case OpTypes.GREATER -> passes;
+            case OpTypes.GREATER_EQUAL, OpTypes.EQUAL -> reaches;
+            default -> min;
+        };
+        long high = switch (type) {
+            case OpTypes.SMALLER -> reaches - 1;
+            case OpTypes.SMALLER_EQUAL, OpTypes.EQUAL -> passes - 1;
+            default -> max;
+        };
+        if (low > high) return List.of(new LogicalSelection(colNum, List.of()));
+        return LogicalSelection.forRange(colNum, new long[]{low == min ? Long.MIN_VALUE : low, high == max ? Long.MAX_VALUE : high});
+    }
 
-        // Allocate array for vars that must be freed
-        operatorCode.append(indent).append("*allocatedValues = (void**)malloc(").append(freeVars.size()).append(" * sizeof(void*));\n");
-        for (int i = 0; i < freeVars.size(); i++) {
-            operatorCode.append(indent).append("((void**)*allocatedValues)[").append(i).append("] = ").append(freeVars.get(i)).append(";\n");
+    /**
+     * Smallest and largest value an aggregate can have for a group, from the selections on its column and the range of
+     * the column's type, or null if it can have any value. A group has at least one record
+     */
+    private static long[] getAggregateRange(Expression aggregate, Schema tableSchema, List<LogicalSelection> selections) {
+        switch (aggregate.getType()) {
+            case OpTypes.COUNT -> {
+                return new long[]{1, Integer.MAX_VALUE};
+            }
+            case OpTypes.MIN, OpTypes.MAX, OpTypes.AVG -> {
+                int colNum = aggregate.getLeftNode().getColumnIndex();
+                List<long[]> ranges = List.of(getTypeRange(tableSchema.getColumn(colNum).dataType));
+                for (LogicalSelection ls : selections)
+                    if (ls.colNum == colNum)
+                        ranges = intersectRanges(ranges, ls.getRanges());
+                return new long[]{ranges.get(0)[0], ranges.get(ranges.size() - 1)[1]};
+            }
+            default -> {
+                return null;
+            }
         }
-        operatorCode.append("\n");
+    }
 
-        // Return operator
-        operatorCode.append(indent).append("return ").append(topLevelOperator).append(";\n");
+    /**
+     * Smallest and largest value of a C integer type, as far as a long holds them
+     */
+    private static long[] getTypeRange(String dataType) {
+        return switch (dataType) {
+            case "uint32_t" -> new long[]{0, 0xFFFFFFFFL};
+            case "int32_t" -> new long[]{Integer.MIN_VALUE, Integer.MAX_VALUE};
+            case "uint64_t" -> new long[]{0, Long.MAX_VALUE};
+            default -> new long[]{Long.MIN_VALUE, Long.MAX_VALUE};
+        };
+    }
 
-        // Close function
-        //noinspection ConstantValue
-        indent = indent.substring(0, indent.length() - 4);
-        operatorCode.append(indent).append("}\n");
+    /**
+     * Smallest value from min to max where a non-decreasing expression is at least target, or max + 1 if there is none
+     */
+    private static long findFirstAtLeast(ArithmeticExpression expr, long min, long max, long target) {
+        long low = min, high = max + 1;
+        while (low < high) {
+            long mid = low + (high - low) / 2;
+            if (expr.evaluate(mid) >= target) high = mid;
+            else low = mid + 1;
+        }
+        return low;
+    }
 
-        // Return iterator code with other info
-        return new OperatorReturn(operatorCode, outputSchema, tableSchema, freeVars.size());
+    /**
+     * Comparison with its sides swapped, so value < column becomes column > value
+     */
+    private static int getSwappedComparison(int opType) {
+        return switch (opType) {
+            case OpTypes.GREATER_EQUAL -> OpTypes.SMALLER_EQUAL;
+            case OpTypes.GREATER -> OpTypes.SMALLER;
+            case OpTypes.SMALLER -> OpTypes.GREATER;
+            case OpTypes.SMALLER_EQUAL -> OpTypes.GREATER_EQUAL;
+            default -> opType;
+        };
     }
 
-    private ArrayList<LogicalSelection> findAllSelections(RangeVariable rv) {
-        // Use a set to avoid duplicates
-        Set<RangeVariable.RangeVariableConditions> rvConditions = new HashSet<>();
-        if (rv.joinConditions != null) rvConditions.addAll(Arrays.asList(rv.joinConditions));
-        if (rv.whereConditions != null) rvConditions.addAll(Arrays.asList(rv.whereConditions));
+    /**
+     * Index of the GROUP BY expression an output or ORDER BY expression refers to, or -1 if there is none
+     */
+    private static int getGroupNum(QuerySpecification query, Expression expr) {
+        Expression[] groupExpressions = query.groupSet.groupExpressions;
+        for (int k = 0; k < groupExpressions.length; k++)
+            if (expr.equals(groupExpressions[k]))
+                return k;
+        return -1;
+    }
 
-        // Get all expressions from the conditions
-        Set<Expression> expressions = new HashSet<>();
-        for (RangeVariable.RangeVariableConditions rvc : rvConditions) {
-            if (rvc.indexCond != null) expressions.addAll(Arrays.asList(rvc.indexCond));
-            if (rvc.indexEndCond != null) expressions.addAll(Arrays.asList(rvc.indexEndCond));
-            if (rvc.indexEndCondition != null) expressions.add(rvc.indexEndCondition);
-            if (rvc.nonIndexCondition != null) expressions.add(rvc.nonIndexCondition);
+    /**
+     * Adds the C functions for the SQL functions of an expression, specialized for integer arguments so they are not converted to double
+     */
+    private static void putFunctions(ArithmeticExpression expr, OrderedHashMap<String, String> cFunctions) {
+        if (expr.type == OpTypes.SQL_FUNCTION && expr.getFunctionName() != null) {
+            String argumentType = expr.getArgumentType();
+            cFunctions.put(expr.getFunctionName(), switch ((int) expr.value) {
+                case FunctionSQL.FUNC_FLOOR -> argumentType == null ? CFunctions.floor() : CFunctions.floorDiv(argumentType);
+                case FunctionSQL.FUNC_CEILING -> argumentType == null ? CFunctions.ceil() : CFunctions.ceilDiv(argumentType);
+                case FunctionSQL.FUNC_ABS -> argumentType == null ? CFunctions.abs() : CFunctions.abs(argumentType);
+                default -> argumentType == null ? CFunctions.round() : CFunctions.roundDiv(argumentType);
+            });
         }
-
-        // Parse all expressions
-        Set<LogicalSelection> logicalSelections = new HashSet<>();
-        for (Expression expr : expressions)
-            if (expr != null) getLogicalSelections(expr, logicalSelections);
-
-        return new ArrayList<>(logicalSelections);
+        if (expr.left != null) putFunctions(expr.left, cFunctions);
+        if (expr.right != null) putFunctions(expr.right, cFunctions);
     }
 
-    private ArithmeticExpression getGroupBy(Expression expr, OrderedHashMap<String, String> cFunctions) {
+    private ArithmeticExpression getGroupBy(Expression expr, Schema tableSchema, OrderedHashMap<String, String> cFunctions) {
         if (expr == null) {
             throw new RuntimeException("Expression cannot be null");
         }
@@ -717,12 +3895,14 @@ public class SQLConverter implements Closeable {
                 throw new RuntimeException("Expression cannot be null");
             }
 
-            ArithmeticExpression leftArithmetic = getGroupBy(left, cFunctions);
-            ArithmeticExpression rightArithmetic = getGroupBy(right, cFunctions);
+            ArithmeticExpression leftArithmetic = getGroupBy(left, tableSchema, cFunctions);
+            ArithmeticExpression rightArithmetic = getGroupBy(right, tableSchema, cFunctions);
 
-            return new ArithmeticExpression(expr.getType(), leftArithmetic, rightArithmetic, 0);
+            return new ArithmeticExpression(expr.getType(), leftArithmetic, rightArithmetic, 0).simplify();
         } else if (expr.getType() == OpTypes.COLUMN) {
-            return new ArithmeticExpression(OpTypes.COLUMN, null, null, expr.getColumnIndex());
+            ArithmeticExpression column = new ArithmeticExpression(OpTypes.COLUMN, null, null, expr.getColumnIndex());
+            column.dataType = tableSchema.getColumn(expr.getColumnIndex()).dataType;
+            return column;
         } else if (expr.getType() == OpTypes.VALUE) {
             if (expr.valueData instanceof BigDecimal) {
                 return new ArithmeticExpression(OpTypes.VALUE, null, null, getFloatValue(expr));
@@ -732,26 +3912,42 @@ public class SQLConverter implements Closeable {
         } else if (expr.getType() == OpTypes.SQL_FUNCTION && expr instanceof FunctionSQL functionSQL) {
             if (!isSupportedFunction(expr)) throw new RuntimeException(String.format("Function '%s' is not supported", functionSQL.name));
 
-            // Add correct C function to code
-            switch (functionSQL.funcType) {
-                case FunctionSQL.FUNC_FLOOR -> cFunctions.put("embedDBFloor", CFunctions.floor());
-                case FunctionSQL.FUNC_CEILING -> cFunctions.put("embedDBCeil", CFunctions.ceil());
-                case FunctionSQL.FUNC_ABS -> cFunctions.put("embedDBAbs", CFunctions.abs());
-                case FunctionCustom.FUNC_ROUND -> cFunctions.put("embedDBRound", CFunctions.round());
-            }
-
-            ArithmeticExpression leftArithmetic = getGroupBy(expr.getLeftNode(), cFunctions);
-            return new ArithmeticExpression(OpTypes.SQL_FUNCTION, leftArithmetic, null, functionSQL.funcType);
+            // Rounding an integer does nothing, and neither does the absolute value of an unsigned column
+            ArithmeticExpression leftArithmetic = getGroupBy(expr.getLeftNode(), tableSchema, cFunctions);
+            if (!leftArithmetic.isFloat() && (functionSQL.funcType != FunctionSQL.FUNC_ABS || (leftArithmetic.type == OpTypes.COLUMN && leftArithmetic.getDataType().startsWith("u"))))
+                return leftArithmetic;
+            ArithmeticExpression function = new ArithmeticExpression(OpTypes.SQL_FUNCTION, leftArithmetic, null, functionSQL.funcType);
+
+            putFunctions(function, cFunctions);
+            return function;
+        } else if (expr instanceof FunctionSQLInvoked function && isWindowFunction(function)) {
+            // The start of the window or pane of one slide the key is in, which is key / width * width
+            Expression[] args = function.getNodes();
+            ArithmeticExpression ts = getGroupBy(args[0], tableSchema, cFunctions);
+            if (ts.isFloat()) throw new RuntimeException(String.format("%s needs an integer timestamp", function.getRoutineName()));
+            long width = getIntValue(args[args.length - 1]);
+            if (width <= 0 || width > Integer.MAX_VALUE) throw new RuntimeException(String.format("%s needs a positive width", function.getRoutineName()));
+            ArithmeticExpression widthValue = new ArithmeticExpression(OpTypes.VALUE, null, null, (int) width);
+            ArithmeticExpression bucket = new ArithmeticExpression(OpTypes.DIVIDE, ts, widthValue, 0).simplify();
+            return new ArithmeticExpression(OpTypes.MULTIPLY, bucket, widthValue, 0).simplify();
         } else {
             throw new RuntimeException("Expression type not supported");
         }
     }
 
+    /**
+     * True for TIME_BUCKET(key, width) and SLIDING_BUCKET(key, size, slide), created with the connection
+     */
+    private static boolean isWindowFunction(FunctionSQLInvoked function) {
+        return function.getRoutineName().equals("TIME_BUCKET") || function.getRoutineName().equals("SLIDING_BUCKET");
+    }
+
     static class ArithmeticExpression {
         public int type;
         public ArithmeticExpression left;
         public ArithmeticExpression right;
         public double value;
+        public String dataType;  // C type of a COLUMN
         private final boolean isFloat;
 
         public ArithmeticExpression(int type, ArithmeticExpression left, ArithmeticExpression right, int value) {
@@ -782,13 +3978,16 @@ public class SQLConverter implements Closeable {
             } else if (type == OpTypes.COLUMN) {
                 return "%s";
             } else if (type == OpTypes.SQL_FUNCTION) {
-                return switch ((int) value) {
-                    case FunctionSQL.FUNC_FLOOR -> "embedDBFloor";
-                    case FunctionSQL.FUNC_CEILING -> "embedDBCeil";
-                    case FunctionSQL.FUNC_ABS -> "embedDBAbs";
-                    case FunctionCustom.FUNC_ROUND -> "embedDBRound";
-                    default -> throw new RuntimeException("Unknown SQL function");
-                } + "(" + left.toFormattedString() + ")";
+                if (getArgumentType() == null || (int) value == FunctionSQL.FUNC_ABS) {
+                    return getFunctionName() + "(" + left.toFormattedString() + ")";
+                }
+                // Integer division by a constant
+                String dividend = left.left.toFormattedString();
+                long divisor = (long) left.right.value;
+                String functionName = getFunctionName();
+                return functionName == null ? getDivision(dividend, left.left.getDataType(), divisor) : functionName + "(" + dividend + ", " + divisor + ")";
+            } else if (type == OpTypes.DIVIDE && !isFloat() && right.type == OpTypes.VALUE && right.value > 0) {
+                return getDivision(left.toFormattedString(), left.getDataType(), (long) right.value);
             } else {
                 return "(" + left.toFormattedString() + " " + switch (type) {
                     case OpTypes.ADD -> "+";
@@ -800,6 +3999,137 @@ public class SQLConverter implements Closeable {
             }
         }
 
+        /**
+         * Integer type the SQL function is specialized for, or null if it works on a double.
+         * floor, ceil and round are specialized when the argument divides an integer by a positive whole number, and abs when the argument is an integer
+         */
+        public String getArgumentType() {
+            if ((int) value == FunctionSQL.FUNC_ABS) {
+                return left.isFloat() ? null : left.getDataType();
+            }
+            boolean isIntegerDivision = left.type == OpTypes.DIVIDE && !left.left.isFloat() && left.right.type == OpTypes.VALUE && left.right.value > 0 && left.right.value == Math.rint(left.right.value);
+            return isIntegerDivision ? left.left.getDataType() : null;
+        }
+
+        /**
+         * Name of the C function called for this SQL function, or null if an unsigned floor division is written as a plain division
+         */
+        public String getFunctionName() {
+            String argumentType = getArgumentType();
+            return switch ((int) value) {
+                case FunctionSQL.FUNC_FLOOR -> argumentType == null ? "embedDBFloor" : argumentType.startsWith("u") ? null : CFunctions.getName("embedDBFloorDiv", argumentType);
+                case FunctionSQL.FUNC_CEILING -> argumentType == null ? "embedDBCeil" : CFunctions.getName("embedDBCeilDiv", argumentType);
+                case FunctionSQL.FUNC_ABS -> argumentType == null ? "embedDBAbs" : CFunctions.getName("embedDBAbs", argumentType);
+                case FunctionCustom.FUNC_ROUND -> argumentType == null ? "embedDBRound" : CFunctions.getName("embedDBRoundDiv", argumentType);
+                default -> throw new RuntimeException("Unknown SQL function");
+            };
+        }
+
+        /**
+         * C type of an integer expression, following the C rules for mixing the types of the columns and constants
+         */
+        public String getDataType() {
+            if (type == OpTypes.VALUE) {
+                return isFloat ? "double" : "int32_t";
+            } else if (type == OpTypes.COLUMN) {
+                return dataType;
+            } else if (type == OpTypes.SQL_FUNCTION) {
+                String argumentType = getArgumentType();
+                return argumentType != null ? argumentType : (int) value == FunctionSQL.FUNC_ABS ? "double" : "int32_t";
+            } else {
+                String leftType = left.getDataType();
+                String rightType = right.getDataType();
+                if (leftType.contains("64") != rightType.contains("64")) return leftType.contains("64") ? leftType : rightType;
+                return leftType.startsWith("u") ? leftType : rightType;
+            }
+        }
+
+        /**
+         * Copy of the expression with its columns read as the given type, so the operations on them are done in that type
+         */
+        public ArithmeticExpression withColumnType(String columnType) {
+            if (type == OpTypes.VALUE) return this;
+            ArithmeticExpression copy = new ArithmeticExpression(type, left == null ? null : left.withColumnType(columnType), right == null ? null : right.withColumnType(columnType), value);
+            if (type == OpTypes.COLUMN) copy.dataType = columnType;
+            return copy;
+        }
+
+        /**
+         * Folds constant operations and removes identity operations of integer expressions, assuming the children are already simplified
+         */
+        public ArithmeticExpression simplify() {
+            // C leaves a division by zero undefined and Cortex-M traps on it, so it is an error like in SQL
+            if (type == OpTypes.DIVIDE && right.type == OpTypes.VALUE && right.value == 0) throw new RuntimeException("Division by zero");
+            if (left.type == OpTypes.VALUE && right.type == OpTypes.VALUE) {
+                if (isFloat()) {
+                    return new ArithmeticExpression(OpTypes.VALUE, null, null, switch (type) {
+                        case OpTypes.ADD -> left.value + right.value;
+                        case OpTypes.SUBTRACT -> left.value - right.value;
+                        case OpTypes.MULTIPLY -> left.value * right.value;
+                        default -> left.value / right.value;
+                    });
+                }
+                long a = (long) left.value;
+                long b = (long) right.value;
+                long folded = switch (type) {
+                    case OpTypes.ADD -> a + b;
+                    case OpTypes.SUBTRACT -> a - b;
+                    case OpTypes.MULTIPLY -> a * b;
+                    default -> a / b;
+                };
+                return folded == (int) folded ? new ArithmeticExpression(OpTypes.VALUE, null, null, (int) folded) : this;
+            }
+            if (isFloat()) return this;
+
+            // x + 0, x - 0, x * 1, x / 1, 0 + x and 1 * x
+            if (right.type == OpTypes.VALUE) {
+                if (right.value == 0 && (type == OpTypes.ADD || type == OpTypes.SUBTRACT)) return left;
+                if (right.value == 1 && (type == OpTypes.MULTIPLY || type == OpTypes.DIVIDE)) return left;
+            }
+            if (left.type == OpTypes.VALUE) {
+                if (left.value == 0 && type == OpTypes.ADD) return right;
+                if (left.value == 1 && type == OpTypes.MULTIPLY) return right;
+            }
+
+            // Combine the constants of (x + a) + b, (x * a) * b and (x / a) / b for positive a and b
+            if (right.type == OpTypes.VALUE && left.type == type && left.right.type == OpTypes.VALUE) {
+                long a = (long) left.right.value;
+                long b = (long) right.value;
+                if (type == OpTypes.ADD || type == OpTypes.MULTIPLY || (type == OpTypes.DIVIDE && a > 0 && b > 0)) {
+                    long combined = type == OpTypes.ADD ? a + b : a * b;
+                    if (combined == (int) combined) {
+                        return new ArithmeticExpression(type, left.left, new ArithmeticExpression(OpTypes.VALUE, null, null, (int) combined), 0).simplify();
+                    }
+                }
+            }
+            return this;
+        }
+
+        /**
+         * C code for an integer division by a positive constant. Division is slow, or a library call on cores without a divider,
+         * so an unsigned 32-bit division becomes a shift for a power of two and otherwise a multiply by the rounded up
+         * reciprocal and a shift, using the smallest shift where the result is exact for every dividend and the reciprocal
+         * still fits in 32 bits
+         */
+        private static String getDivision(String dividend, String dataType, long divisor) {
+            if (!dataType.equals("uint32_t")) {
+                return "(" + dividend + " / " + divisor + ")";
+            }
+            if (Long.bitCount(divisor) == 1) {
+                return "(" + dividend + " >> " + Long.numberOfTrailingZeros(divisor) + ")";
+            }
+            for (int shift = 32; shift < 64; shift++) {
+                BigInteger power = BigInteger.ONE.shiftLeft(shift);
+                BigInteger multiplier = power.add(BigInteger.valueOf(divisor - 1)).divide(BigInteger.valueOf(divisor));
+                if (multiplier.bitLength() > 32) break;
+                BigInteger error = multiplier.multiply(BigInteger.valueOf(divisor)).subtract(power);
+                if (error.compareTo(BigInteger.ONE.shiftLeft(shift - 32)) <= 0) {
+                    return "(uint32_t)(((uint64_t)" + dividend + " * " + multiplier + "u) >> " + shift + ")";
+                }
+            }
+            return "(" + dividend + " / " + divisor + ")";
+        }
+
         public int numCols() {
             if (type == OpTypes.COLUMN) {
                 return 1;
@@ -812,6 +4142,17 @@ public class SQLConverter implements Closeable {
             }
         }
 
+        /**
+         * Columns of the expression in the order of the %s in toFormattedString
+         */
+        public List<Integer> getCols() {
+            if (type == OpTypes.COLUMN) return List.of((int) value);
+            ArrayList<Integer> cols = new ArrayList<>();
+            if (left != null) cols.addAll(left.getCols());
+            if (right != null) cols.addAll(right.getCols());
+            return cols;
+        }
+
         public int getCol() {
             if (type == OpTypes.COLUMN) {
                 return (int) value;
@@ -824,6 +4165,99 @@ public class SQLConverter implements Closeable {
             }
         }
 
+        /**
+         * True if the value never decreases as the column increases, so groups on the key come out in the order of
+         * this expression
+         */
+        public boolean isNonDecreasing() {
+            return switch (type) {
+                case OpTypes.COLUMN, OpTypes.VALUE -> true;
+                case OpTypes.SQL_FUNCTION -> (int) value != FunctionSQL.FUNC_ABS && left.isNonDecreasing();
+                case OpTypes.ADD -> left.isNonDecreasing() && right.isNonDecreasing();
+                case OpTypes.SUBTRACT -> left.isNonDecreasing() && right.type == OpTypes.VALUE;
+                case OpTypes.MULTIPLY -> left.isNonDecreasing() && right.isNonDecreasing() && (left.type == OpTypes.VALUE ? left.value : right.type == OpTypes.VALUE ? right.value : -1) > 0;
+                case OpTypes.DIVIDE -> left.isNonDecreasing() && right.type == OpTypes.VALUE && right.value > 0;
+                default -> false;
+            };
+        }
+
+        /**
+         * Width W when the expression is a column divided by W, with constants added, subtracted or multiplied by a
+         * positive value after the division, so it has a different value for each range of W keys, or 0 otherwise
+         */
+        public long getBucketWidth() {
+            if (isFloat()) return 0;
+            return switch (type) {
+                case OpTypes.DIVIDE -> left.type == OpTypes.COLUMN && right.type == OpTypes.VALUE && right.value > 0 ? (long) right.value : 0;
+                case OpTypes.ADD -> left.type == OpTypes.VALUE ? right.getBucketWidth() : right.type == OpTypes.VALUE ? left.getBucketWidth() : 0;
+                case OpTypes.SUBTRACT -> right.type == OpTypes.VALUE ? left.getBucketWidth() : 0;
+                case OpTypes.MULTIPLY -> left.type == OpTypes.VALUE && left.value > 0 ? right.getBucketWidth() : right.type == OpTypes.VALUE && right.value > 0 ? left.getBucketWidth() : 0;
+                default -> 0;
+            };
+        }
+
+        /**
+         * True for key / W * W, which is the start of its window, as TIME_BUCKET is
+         */
+        public boolean isBucketStart() {
+            return type == OpTypes.MULTIPLY && left.getBucketWidth() > 0 && left.type == OpTypes.DIVIDE && right.type == OpTypes.VALUE && right.value == left.right.value;
+        }
+
+        /**
+         * True if the C code of the expression only does integer arithmetic, so evaluate gives its exact value
+         */
+        public boolean isInteger() {
+            return switch (type) {
+                case OpTypes.VALUE -> !isFloat;
+                case OpTypes.COLUMN -> true;
+                case OpTypes.SQL_FUNCTION -> getArgumentType() != null && left.isInteger();
+                default -> left.isInteger() && right.isInteger();
+            };
+        }
+
+        /**
+         * Value of an integer expression of one column when the column is x, as computed by its C code without
+         * overflow. Throws ArithmeticException if it does not fit in a long
+         */
+        public long evaluate(long x) {
+            return switch (type) {
+                case OpTypes.VALUE -> (long) value;
+                case OpTypes.COLUMN -> x;
+                case OpTypes.SQL_FUNCTION -> {
+                    if ((int) value == FunctionSQL.FUNC_ABS) yield Math.absExact(left.evaluate(x));
+                    long dividend = left.left.evaluate(x);
+                    long divisor = (long) left.right.value;
+                    long quotient = Math.floorDiv(dividend, divisor);
+                    long remainder = Math.floorMod(dividend, divisor);
+                    yield switch ((int) value) {
+                        case FunctionSQL.FUNC_FLOOR -> quotient;
+                        case FunctionSQL.FUNC_CEILING -> remainder > 0 ? quotient + 1 : quotient;
+                        default -> remainder >= divisor - remainder ? quotient + 1 : quotient;
+                    };
+                }
+                case OpTypes.ADD -> Math.addExact(left.evaluate(x), right.evaluate(x));
+                case OpTypes.SUBTRACT -> Math.subtractExact(left.evaluate(x), right.evaluate(x));
+                case OpTypes.MULTIPLY -> Math.multiplyExact(left.evaluate(x), right.evaluate(x));
+                default -> left.evaluate(x) / right.evaluate(x);
+            };
+        }
+
+        /**
+         * True if the value of every part of an integer expression fits in its C type when the column is x, so the
+         * C code does not wrap around
+         */
+        public boolean fitsDataType(long x) {
+            if (left != null && !left.fitsDataType(x)) return false;
+            if (right != null && !right.fitsDataType(x)) return false;
+            long result = evaluate(x);
+            return switch (getDataType()) {
+                case "uint32_t" -> result >= 0 && result <= 0xFFFFFFFFL;
+                case "int32_t" -> result == (int) result;
+                case "uint64_t" -> result >= 0;
+                default -> true;
+            };
+        }
+
         public boolean isFloat() {
             if (type == OpTypes.VALUE) {
                 return isFloat;
@@ -900,7 +4334,11 @@ public class SQLConverter implements Closeable {
         throw new RuntimeException("Value was not a number");
     }
 
-    private void getLogicalSelections(Expression expr, Set<LogicalSelection> logicalSelections) {
+    /**
+     * Adds the selections of a conjunction to logicalSelections. A comparison that is not between a column and a value
+     * is added to expressionComparisons, or rejected if that is null
+     */
+    private void getLogicalSelections(Expression expr, Set<LogicalSelection> logicalSelections, List<Expression> expressionComparisons) {
         Expression left = expr.getLeftNode();
         Expression right = expr.getRightNode();
         if (expr.getType() == OpTypes.AND) {
@@ -908,18 +4346,34 @@ public class SQLConverter implements Closeable {
             if (!(left instanceof ExpressionLogical) || !(right instanceof ExpressionLogical)) {
                 throw new RuntimeException("Expressions on either side of AND must be logical");
             }
-            getLogicalSelections(left, logicalSelections);
-            getLogicalSelections(right, logicalSelections);
+            getLogicalSelections(left, logicalSelections, expressionComparisons);
+            getLogicalSelections(right, logicalSelections, expressionComparisons);
+        } else if (expr.getType() == OpTypes.OR || isInList(expr)) {
+            // A disjunction on one column becomes a list of value ranges
+            ArrayList<long[]> ranges = new ArrayList<>();
+            int columnIndex = getColumnRanges(expr, ranges);
+            logicalSelections.add(new LogicalSelection(columnIndex, normalizeRanges(ranges)));
+        } else if (expr.getType() == OpTypes.NOT) {
+            if (!isInList(left)) {
+                throw new RuntimeException("NOT is only supported before an IN list");
+            }
+            ArrayList<long[]> ranges = new ArrayList<>();
+            int columnIndex = getColumnRanges(left, ranges);
+            for (long[] range : ranges)
+                logicalSelections.add(new LogicalSelection(columnIndex, OpTypes.NOT_EQUAL, range[0]));
         } else if (expr.getType() == OpTypes.GREATER_EQUAL || expr.getType() == OpTypes.GREATER || expr.getType() == OpTypes.SMALLER || expr.getType() == OpTypes.SMALLER_EQUAL || expr.getType() == OpTypes.NOT_EQUAL || expr.getType() == OpTypes.EQUAL) {
             // Base case
             int columnIndex;
             long value;
-            if (left.getType() == OpTypes.COLUMN && isSupportedValue(right)) {
+            if (left.getType() == OpTypes.COLUMN && right.getType() == OpTypes.VALUE) {
                 columnIndex = left.getColumnIndex();
                 value = getIntValue(right);
-            } else if (isSupportedValue(left) && right.getType() == OpTypes.COLUMN) {
+            } else if (left.getType() == OpTypes.VALUE && right.getType() == OpTypes.COLUMN) {
                 columnIndex = right.getColumnIndex();
                 value = getIntValue(left);
+            } else if (expressionComparisons != null) {
+                expressionComparisons.add(expr);
+                return;
             } else {
                 throw new RuntimeException("Expressions must be logical with a column and a value");
             }
@@ -927,6 +4381,103 @@ public class SQLConverter implements Closeable {
         }
     }
 
+    /**
+     * Adds the conditions joined by AND in expr to conjuncts
+     */
+    private void getConjuncts(Expression expr, List<Expression> conjuncts) {
+        if (expr.getType() == OpTypes.AND) {
+            getConjuncts(expr.getLeftNode(), conjuncts);
+            getConjuncts(expr.getRightNode(), conjuncts);
+        } else {
+            conjuncts.add(expr);
+        }
+    }
+
+    /**
+     * HSQLDB compiles column IN (values) to ROW(column) = ANY VALUELIST(ROW(value), ...)
+     */
+    private boolean isInList(Expression expr) {
+        return expr.getType() == OpTypes.EQUAL && expr.getLeftNode().getType() == OpTypes.ROW && expr.getRightNode().getType() == OpTypes.VALUELIST;
+    }
+
+    /**
+     * Adds the value ranges allowed by an OR, an IN list or a conjunction of comparisons to ranges, and returns the
+     * column they are on. The ranges are not sorted or merged.
+     */
+    private int getColumnRanges(Expression expr, ArrayList<long[]> ranges) {
+        if (isInList(expr)) {
+            Expression[] columns = expr.getLeftNode().getNodes();
+            if (columns.length != 1 || columns[0].getType() != OpTypes.COLUMN) {
+                throw new RuntimeException("IN is only supported on a single column");
+            }
+            for (Expression row : expr.getRightNode().getNodes()) {
+                long value = getIntValue(row.getLeftNode());
+                ranges.add(new long[]{value, value});
+            }
+            return columns[0].getColumnIndex();
+        } else if (expr.getType() == OpTypes.OR) {
+            int columnIndex = getColumnRanges(expr.getLeftNode(), ranges);
+            if (getColumnRanges(expr.getRightNode(), ranges) != columnIndex) {
+                throw new RuntimeException("OR is only supported between conditions on the same column");
+            }
+            return columnIndex;
+        }
+
+        // Everything else must be comparisons on the column joined by AND, so intersect their ranges
+        Set<LogicalSelection> selections = new HashSet<>();
+        getLogicalSelections(expr, selections, null);
+        if (selections.isEmpty()) {
+            throw new RuntimeException("Unsupported condition in OR");
+        }
+        int columnIndex = selections.iterator().next().colNum;
+        List<long[]> intersection = List.of(new long[]{Long.MIN_VALUE, Long.MAX_VALUE});
+        for (LogicalSelection ls : selections) {
+            if (ls.colNum != columnIndex) {
+                throw new RuntimeException("OR is only supported between conditions on the same column");
+            }
+            intersection = intersectRanges(intersection, ls.getRanges());
+        }
+        ranges.addAll(intersection);
+        return columnIndex;
+    }
+
+    /**
+     * Sorts inclusive ranges and merges the ones that overlap or touch
+     */
+    private static List<long[]> normalizeRanges(List<long[]> ranges) {
+        ArrayList<long[]> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(range -> range[0]));
+
+        ArrayList<long[]> merged = new ArrayList<>();
+        for (long[] range : sorted) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && (last[1] == Long.MAX_VALUE || range[0] <= last[1] + 1)) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(new long[]{range[0], range[1]});
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Intersection of two lists of sorted, disjoint ranges
+     */
+    private static List<long[]> intersectRanges(List<long[]> a, List<long[]> b) {
+        ArrayList<long[]> intersection = new ArrayList<>();
+        int i = 0, j = 0;
+        while (i < a.size() && j < b.size()) {
+            long low = Math.max(a.get(i)[0], b.get(j)[0]);
+            long high = Math.min(a.get(i)[1], b.get(j)[1]);
+            if (low <= high) intersection.add(new long[]{low, high});
+
+            // Move past the range that ends first
+            if (a.get(i)[1] < b.get(j)[1]) i++;
+            else j++;
+        }
+        return intersection;
+    }
+
     /**
      * Schema of a table or a range variable.
      * Maps column names to their size in bytes.
@@ -1029,6 +4580,19 @@ public class SQLConverter implements Closeable {
             addColumn(name, size, false);
         }
 
+        /**
+         * Schema of the records of a projection keeping the given columns. Column numbers stay the same and the other
+         * columns take no space, so the offset of a kept column is its offset in the projected record
+         */
+        Schema project(Collection<Integer> colNums) {
+            Schema schema = new Schema();
+            for (int i = 0; i < columns.size(); i++) {
+                Column column = columns.get(i);
+                schema.columns.add(new Column(column.name, colNums.contains(i) ? column.size : 0, column.dataType));
+            }
+            return schema;
+        }
+
         int getRecordSize() {
             int size = 0;
             for (Column c : columns)
@@ -1095,10 +4659,27 @@ public class SQLConverter implements Closeable {
         }
     }
 
+    /**
+     * A comparison between arithmetic expressions of the columns, checked by the predicate function of the query
+     */
+    private static class ExpressionSelection {
+        ArithmeticExpression left;
+        int type;
+        ArithmeticExpression right;
+
+        ExpressionSelection(ArithmeticExpression left, int type, ArithmeticExpression right) {
+            this.left = left;
+            this.type = type;
+            this.right = right;
+        }
+    }
+
     private static class LogicalSelection {
         public int colNum;
         public int type;
         public long value;
+        /** Sorted, disjoint and inclusive ranges of an OR selection. Long.MIN_VALUE and Long.MAX_VALUE mean unbounded */
+        public List<long[]> ranges;
 
         public LogicalSelection(int colNum, int type, long value) {
             this.colNum = colNum;
@@ -1106,12 +4687,70 @@ public class SQLConverter implements Closeable {
             this.value = value;
         }
 
+        public LogicalSelection(int colNum, List<long[]> ranges) {
+            this.colNum = colNum;
+            this.type = OpTypes.OR;
+            this.ranges = ranges;
+        }
+
+        /**
+         * Sorted, disjoint ranges of the values that pass this selection
+         */
+        List<long[]> getRanges() {
+            return switch (type) {
+                case OpTypes.GREATER, OpTypes.GREATER_EQUAL -> List.of(new long[]{getMin(), Long.MAX_VALUE});
+                case OpTypes.SMALLER, OpTypes.SMALLER_EQUAL -> List.of(new long[]{Long.MIN_VALUE, getMax()});
+                case OpTypes.EQUAL -> List.of(new long[]{value, value});
+                case OpTypes.NOT_EQUAL -> removeValue(List.of(new long[]{Long.MIN_VALUE, Long.MAX_VALUE}), value);
+                case OpTypes.OR -> ranges;
+                default -> throw new RuntimeException("Unknown type");
+            };
+        }
+
+        /**
+         * Plain selections for one range, with no selection on an unbounded side
+         */
+        static List<LogicalSelection> forRange(int colNum, long[] range) {
+            if (range[0] == range[1]) return List.of(new LogicalSelection(colNum, OpTypes.EQUAL, range[0]));
+            ArrayList<LogicalSelection> selections = new ArrayList<>();
+            if (range[0] != Long.MIN_VALUE) selections.add(new LogicalSelection(colNum, OpTypes.GREATER_EQUAL, range[0]));
+            if (range[1] != Long.MAX_VALUE) selections.add(new LogicalSelection(colNum, OpTypes.SMALLER_EQUAL, range[1]));
+            return selections;
+        }
+
+        static List<long[]> removeValue(List<long[]> ranges, long value) {
+            ArrayList<long[]> result = new ArrayList<>();
+            for (long[] range : ranges) {
+                if (value < range[0] || value > range[1]) {
+                    result.add(range);
+                    continue;
+                }
+                if (value > range[0]) result.add(new long[]{range[0], value - 1});
+                if (value < range[1]) result.add(new long[]{value + 1, range[1]});
+            }
+            return result;
+        }
+
+        /**
+         * Smallest value allowed by a > or >= selection
+         */
+        long getMin() {
+            return type == OpTypes.GREATER ? value + 1 : value;
+        }
+
+        /**
+         * Largest value allowed by a < or <= selection
+         */
+        long getMax() {
+            return type == OpTypes.SMALLER ? value - 1 : value;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             LogicalSelection that = (LogicalSelection) o;
-            return colNum == that.colNum && type == that.type && value == that.value;
+            return colNum == that.colNum && type == that.type && value == that.value && Objects.deepEquals(ranges == null ? null : ranges.toArray(), that.ranges == null ? null : that.ranges.toArray());
         }
 
         @Override
@@ -0,0 +1,192 @@
+/**
+ * @file		TableStatistics.java
+ * @author		EmbedDB Team
+ * @brief		Source code for EmbedDB-SQL
+ * @copyright	Copyright 2023
+ * 			    EmbedDB Team
+ * @par Redistribution and use in source and binary forms, with or without
+ * 	modification, are permitted provided that the following conditions are met:
+ *
+ * @par 1.Redistributions of source code must retain the above copyright notice,
+ * 	this list of conditions and the following disclaimer.
+ *
+ * @par 2.Redistributions in binary form must reproduce the above copyright notice,
+ * 	this list of conditions and the following disclaimer in the documentation
+ * 	and/or other materials provided with the distribution.
+ *
+ * @par 3.Neither the name of the copyright holder nor the names of its contributors
+ * 	may be used to endorse or promote products derived from this software without
+ * 	specific prior written permission.
+ *
+ * @par THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * 	AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * 	IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * 	ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * 	LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * 	CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * 	SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * 	INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * 	CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * 	ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * 	POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package SQLConverter;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Statistics of a table stored in EmbedDB, used by SQLConverter to estimate how many records a selection keeps.
+ * Column names are matched the same way HSQLDB matches unquoted identifiers, so they are not case-sensitive.
+ * <p>
+ * A statistics file is a JSON object that maps table names to their statistics, for example:
+ * <pre>
+ * {
+ *   "uwa": {
+ *     "rowCount": 1000000,
+ *     "pageSize": 512,
+ *     "columns": {
+ *       "airTemp": {"min": -100, "max": 500, "histogram": [{"low": -100, "high": 199, "count": 900000}, {"low": 200, "high": 500, "count": 100000}]},
+ *       "windSpeed": {"min": 0, "max": 400, "distinctValues": 400}
+ *     },
+ *     "zoneMapColumns": ["windSpeed"]
+ *   }
+ * }
+ * </pre>
+ */
+public class TableStatistics {
+    public long rowCount;
+    /**
+     * Size of an EmbedDB page in bytes
+     */
+    public int pageSize = 512;
+    /**
+     * Size in bytes of the bitmap each data page keeps for the data index
+     */
+    public int bitmapSize = 8;
+    public Map<String, ColumnStatistics> columns = new HashMap<>();
+    /**
+     * Columns whose smallest and largest value on each data page the device keeps in the page header, so whole pages
+     * can be skipped. They follow the bitmap as the min then the max of each column in the order of the list, and are
+     * included in the headerSize of the embedDBState
+     */
+    public List<String> zoneMapColumns = new ArrayList<>();
+
+    public long recordsPerPage(int recordSize) {
+        // Data pages start with a 4 byte id, a 2 byte count and the bitmap
+        return Math.max(1, (pageSize - 6 - bitmapSize) / recordSize);
+    }
+
+    public long dataPages(int recordSize) {
+        long recordsPerPage = recordsPerPage(recordSize);
+        return (rowCount + recordsPerPage - 1) / recordsPerPage;
+    }
+
+    /**
+     * Number of index pages holding the bitmaps of the given number of data pages
+     */
+    public long indexPages(long dataPages) {
+        long bitmapsPerPage = Math.max(1, (pageSize - 16) / bitmapSize);
+        return (dataPages + bitmapsPerPage - 1) / bitmapsPerPage;
+    }
+
+    public static class ColumnStatistics {
+        public Long min;
+        public Long max;
+        public Long distinctValues;
+        /**
+         * Buckets with inclusive bounds, values are assumed to be spread evenly within a bucket
+         */
+        public Bucket[] histogram;
+
+        /**
+         * Estimated fraction of records with low <= value <= high that are not in notEqual
+         */
+        public double selectivity(long low, long high, Set<Long> notEqual) {
+            double selectivity;
+            if (histogram != null && histogram.length > 0) {
+                long total = 0;
+                double matching = 0;
+                for (Bucket bucket : histogram) {
+                    total += bucket.count;
+                    long overlapLow = Math.max(low, bucket.low), overlapHigh = Math.min(high, bucket.high);
+                    if (overlapLow <= overlapHigh)
+                        matching += bucket.count * ((double) (overlapHigh - overlapLow + 1) / (bucket.high - bucket.low + 1));
+                }
+                selectivity = total == 0 ? 0 : matching / total;
+            } else if (min != null && max != null) {
+                long overlapLow = Math.max(low, min), overlapHigh = Math.min(high, max);
+                selectivity = overlapLow > overlapHigh ? 0 : (double) (overlapHigh - overlapLow + 1) / (max - min + 1);
+            } else {
+                return defaultSelectivity(low, high, notEqual);
+            }
+
+            // A single value is at most one distinct value's share of the records
+            if (low == high && distinctValues != null && distinctValues > 0)
+                selectivity = Math.min(selectivity, 1.0 / distinctValues);
+
+            for (long value : notEqual)
+                selectivity *= 1 - selectivity(value, value, Set.of());
+            return selectivity;
+        }
+    }
+
+    public static class Bucket {
+        public long low;
+        public long high;
+        public long count;
+    }
+
+    /**
+     * Selectivity used when nothing is known about a column. An open bound is Long.MIN_VALUE or Long.MAX_VALUE.
+     */
+    public static double defaultSelectivity(long low, long high, Set<Long> notEqual) {
+        double selectivity;
+        if (low == high) {
+            selectivity = 0.1;
+        } else if (low != Long.MIN_VALUE && high != Long.MAX_VALUE) {
+            selectivity = 0.25;
+        } else if (low != Long.MIN_VALUE || high != Long.MAX_VALUE) {
+            selectivity = 1.0 / 3;
+        } else {
+            selectivity = 1;
+        }
+        return selectivity * Math.pow(0.9, notEqual.size());
+    }
+
+    public ColumnStatistics getColumn(String name) {
+        for (Map.Entry<String, ColumnStatistics> entry : columns.entrySet())
+            if (entry.getKey().equalsIgnoreCase(name))
+                return entry.getValue();
+        return null;
+    }
+
+    /**
+     * Reads a statistics file, returning the statistics of each table keyed by the upper case table name
+     */
+    public static Map<String, TableStatistics> load(Path path) throws IOException {
+        Map<String, TableStatistics> tables;
+        try (Reader reader = Files.newBufferedReader(path)) {
+            tables = new Gson().fromJson(reader, new TypeToken<Map<String, TableStatistics>>() {}.getType());
+        } catch (JsonParseException e) {
+            throw new IOException("Invalid statistics file: " + e.getMessage(), e);
+        }
+
+        Map<String, TableStatistics> byName = new HashMap<>();
+        if (tables != null)
+            tables.forEach((name, stats) -> byName.put(name.toUpperCase(), stats));
+        return byName;
+    }
+}
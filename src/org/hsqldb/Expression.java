@@ -798,6 +798,13 @@ public class Expression implements Cloneable {
         nodes[RIGHT] = e;
     }
 
+    /**
+     * Returns all the nodes, such as the rows of a value list
+     */
+    public Expression[] getNodes() {
+        return nodes;
+    }
+
     int getSubType() {
         return exprSubType;
     }
@@ -66,7 +66,7 @@ public class ExpressionOrderBy extends Expression {
     /**
      * Is an ORDER BY column expression DESC
      */
-    boolean isDescending() {
+    public boolean isDescending() {
         return isDescending;
     }
 
@@ -222,6 +222,10 @@ public class FunctionSQLInvoked extends Expression {
         set.add(routine.getSpecificName());
     }
 
+    public String getRoutineName() {
+        return routineSchema.getName().name;
+    }
+
     public String getSQL() {
 
         StringBuilder sb = new StringBuilder();
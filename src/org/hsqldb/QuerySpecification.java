@@ -85,7 +85,7 @@ public class QuerySpecification extends QueryExpression {
     private HsqlArrayList rangeVariableList;
     int                   startInnerRange = -1;
     int                   endInnerRange   = -1;
-    Expression            queryCondition;
+    public Expression     queryCondition;
     Expression            checkQueryCondition;
     public Expression[]          exprColumns;
     HsqlArrayList         exprColumnList;
@@ -130,7 +130,7 @@ public class RangeVariable {
     int rangeType;
 
     //
-    boolean isGenerated;
+    public boolean isGenerated;
 
     public RangeVariable(OrderedHashMap variables, SimpleName rangeName,
                          boolean isVariable, int rangeType) {
@@ -90,6 +90,10 @@ public final class SortAndSlice {
         return limitCondition != null;
     }
 
+    public ExpressionOp getLimitCondition() {
+        return limitCondition;
+    }
+
     public int getOrderLength() {
         return exprList.size();
     }
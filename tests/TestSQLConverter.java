@@ -32,6 +32,7 @@
  */
 
 import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -39,9 +40,13 @@ import org.junit.jupiter.params.provider.MethodSource;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.List;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import SQLConverter.SQLConverter;
@@ -49,19 +54,30 @@ import SQLConverter.SQLConverter;
 @SuppressWarnings("CallToPrintStackTrace")
 public class TestSQLConverter {
     private static SQLConverter sqlConverter;
+    /**
+     * Converter for the tables of the statistics file, so loading statistics does not change the planning of other tests
+     */
+    private static SQLConverter statisticsConverter;
 
     @BeforeAll
     public static void setUp() throws Exception {
         // Setup stmt by running ddl statements
         sqlConverter = new SQLConverter("CREATE TABLE uwa (id INT PRIMARY KEY, airTemp INT, airPres INT, windSpeed INT)", "CREATE TABLE sea (id INT PRIMARY KEY, airTemp INT, airPres INT, windSpeed INT)", "CREATE INDEX uTemp ON uwa (airTemp)", "CREATE INDEX sTemp ON sea (airTemp)");
+
+        statisticsConverter = new SQLConverter("CREATE TABLE env (id INT PRIMARY KEY, temp INT, humidity INT)", "CREATE TABLE station (id INT PRIMARY KEY, temp INT, wind INT)", "CREATE INDEX stationTemp ON station (temp)", "CREATE TABLE sensor (id INT PRIMARY KEY, state INT, reading INT)", "CREATE TABLE meter (id INT PRIMARY KEY, energy INT, power INT)");
+        statisticsConverter.loadStatistics(Paths.get("tests/TestInputs/statistics.json"));
     }
 
     @ParameterizedTest
     @MethodSource("provideQueryTestData")
     public void testQuery(String query, String resultFile) throws IOException {
+        testQuery(sqlConverter, query, resultFile);
+    }
+
+    private static void testQuery(SQLConverter converter, String query, String resultFile) throws IOException {
         String result = null;
         try {
-            result = sqlConverter.toCCode(query);
+            result = converter.toCCode(query);
         } catch (Exception e) {
             e.printStackTrace();
             fail("Execution failed");
@@ -72,6 +88,152 @@ public class TestSQLConverter {
         assertEquals(expected, result);
     }
 
+    @ParameterizedTest
+    @MethodSource("provideFusedQueryTestData")
+    public void testFusedQuery(String query, String resultFile) throws IOException {
+        sqlConverter.setCodeGenMode(SQLConverter.CodeGenMode.FUSED);
+        try {
+            testQuery(query, resultFile);
+        } finally {
+            sqlConverter.setCodeGenMode(SQLConverter.CodeGenMode.OPERATOR);
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideContinuousQueryTestData")
+    public void testContinuousQuery(String query, String resultFile) throws IOException {
+        sqlConverter.setCodeGenMode(SQLConverter.CodeGenMode.CONTINUOUS);
+        try {
+            testQuery(query, resultFile);
+        } finally {
+            sqlConverter.setCodeGenMode(SQLConverter.CodeGenMode.OPERATOR);
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideStaticQueryTestData")
+    public void testStaticQuery(SQLConverter.CodeGenMode mode, String query, String resultFile) throws IOException {
+        sqlConverter.setCodeGenMode(mode);
+        sqlConverter.setAllocationMode(SQLConverter.AllocationMode.STATIC);
+        try {
+            testQuery(query, resultFile);
+        } finally {
+            sqlConverter.setCodeGenMode(SQLConverter.CodeGenMode.OPERATOR);
+            sqlConverter.setAllocationMode(SQLConverter.AllocationMode.HEAP);
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideOutputModeTestData")
+    public void testOutputMode(SQLConverter.CodeGenMode mode, SQLConverter.OutputMode outputMode, String query, String resultFile) throws IOException {
+        sqlConverter.setCodeGenMode(mode);
+        sqlConverter.setOutputMode(outputMode);
+        try {
+            testQuery(query, resultFile);
+        } finally {
+            sqlConverter.setCodeGenMode(SQLConverter.CodeGenMode.OPERATOR);
+            sqlConverter.setOutputMode(SQLConverter.OutputMode.CSV);
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideStatisticsQueryTestData")
+    public void testStatisticsQuery(SQLConverter.CodeGenMode mode, SQLConverter.AllocationMode allocationMode, String query, String resultFile) throws IOException {
+        statisticsConverter.setCodeGenMode(mode);
+        statisticsConverter.setAllocationMode(allocationMode);
+        try {
+            testQuery(statisticsConverter, query, resultFile);
+        } finally {
+            statisticsConverter.setCodeGenMode(SQLConverter.CodeGenMode.OPERATOR);
+            statisticsConverter.setAllocationMode(SQLConverter.AllocationMode.HEAP);
+        }
+    }
+
+    @Test
+    public void testSelectivityFromSampleRows() throws Exception {
+        // Almost no sample rows have windSpeed > 200, so it is checked before airPres. The rows go in a table of their own converter
+        try (SQLConverter sampleConverter = new SQLConverter("CREATE TABLE sea (id INT PRIMARY KEY, airTemp INT, airPres INT, windSpeed INT)", "CREATE INDEX sTemp ON sea (airTemp)")) {
+            sampleConverter.executeDDL("INSERT INTO sea VALUES (1, 10, 300, 50), (2, 10, 300, 60), (3, 10, 300, 70), (4, 10, 300, 300)");
+            sampleConverter.setCodeGenMode(SQLConverter.CodeGenMode.FUSED);
+            testQuery(sampleConverter, "SELECT * FROM sea WHERE airPres >= 100 AND airPres < 500 AND windSpeed > 200", "fusedSelectivitySampleRows.txt");
+        }
+    }
+
+    @Test
+    public void testSelectivityFromStatisticsFile() throws Exception {
+        // The statistics say humidity >= 50 keeps 1% of records and temp < 30 keeps 88%
+        testQuery(statisticsConverter, "SELECT id FROM env WHERE temp < 30 AND humidity >= 50", "selectivityStatisticsFile.txt");
+    }
+
+    @Test
+    public void testAccessPathFromStatistics() throws Exception {
+        // Few records have temp >= 450, so the data index skips most pages
+        testQuery(statisticsConverter, "SELECT * FROM station WHERE temp >= 450", "accessPathDataIndex.txt");
+        // Most records have temp >= 0, so nearly every page would be read through the data index as well
+        testQuery(statisticsConverter, "SELECT * FROM station WHERE id >= 500000 AND temp >= 0", "accessPathKeyScan.txt");
+    }
+
+    @Test
+    public void testZoneMaps() throws Exception {
+        // The device keeps the min and max energy of each page, so pages without energy in range are skipped
+        String query = "SELECT id, power FROM meter WHERE energy >= 500 AND energy < 600 AND id > 1000 AND id <= 90000";
+        testQuery(statisticsConverter, query, "zoneMapScan.txt");
+        statisticsConverter.setCodeGenMode(SQLConverter.CodeGenMode.FUSED);
+        try {
+            testQuery(statisticsConverter, query, "fusedZoneMapScan.txt");
+            testQuery(statisticsConverter, "SELECT COUNT(*) FROM meter WHERE energy = 5 OR energy > 900", "fusedZoneMapScanOr.txt");
+
+            // Page ids keep growing after the circular data file wraps, so pages are read by their physical page number
+            for (SQLConverter.CodeGenMode mode : List.of(SQLConverter.CodeGenMode.OPERATOR, SQLConverter.CodeGenMode.FUSED)) {
+                statisticsConverter.setCodeGenMode(mode);
+                String code = statisticsConverter.toCCode(query);
+                assertTrue(code.contains("readPage(state, pageId % state->numDataPages)"), mode.toString());
+                assertFalse(code.contains("readPage(state, pageId)"), mode.toString());
+            }
+            statisticsConverter.setCodeGenMode(SQLConverter.CodeGenMode.OPERATOR);
+            statisticsConverter.setAllocationMode(SQLConverter.AllocationMode.STATIC);
+            testQuery(statisticsConverter, query, "staticZoneMapScan.txt");
+        } finally {
+            statisticsConverter.setCodeGenMode(SQLConverter.CodeGenMode.OPERATOR);
+            statisticsConverter.setAllocationMode(SQLConverter.AllocationMode.HEAP);
+        }
+    }
+
+    @Test
+    public void testFootprint() throws IOException {
+        String query = "SELECT id / 60, COUNT(*), AVG(airTemp) FROM uwa WHERE airTemp > 200 AND windSpeed < 30 GROUP BY id / 60";
+        sqlConverter.toCCode(query);
+        assertEquals(loadExpectedResult("footprint.txt"), sqlConverter.getFootprint().toString());
+
+        // The operator tree is over the budget, so the query gets fused code
+        sqlConverter.setRamBudget(800);
+        try {
+            assertEquals(loadExpectedResult("footprintFused.txt"), sqlConverter.toCCode(query));
+            sqlConverter.setRamBudget(500);
+            assertEquals("The query needs 597 bytes of RAM, more than the budget of 500 bytes", sqlConverter.toCCode(query));
+        } finally {
+            sqlConverter.setRamBudget(0);
+        }
+    }
+
+    @Test
+    public void testDivisionByZero() {
+        RuntimeException e = assertThrows(RuntimeException.class, () -> sqlConverter.toCCode("SELECT id FROM uwa WHERE windSpeed / 0 > 1"));
+        assertEquals("Division by zero", e.getMessage());
+    }
+
+    @Test
+    public void testSharedScan() throws IOException {
+        // One scan over the union of the key ranges, with each query checking its own selections
+        List<String> queries = List.of(
+                "SELECT id, airTemp FROM uwa WHERE id >= 100 AND id <= 200 AND airTemp IN (1, 5, 9)",
+                "SELECT id / 60, COUNT(*), MAX(windSpeed) FROM uwa WHERE id >= 150 AND id < 400 GROUP BY id / 60 LIMIT 3",
+                "SELECT * FROM uwa WHERE id = 300",
+                "SELECT * FROM uwa WHERE airTemp > 5 AND airTemp < 1");
+        assertEquals(loadExpectedResult("sharedScan.txt"), sqlConverter.toCCode(queries));
+        assertEquals(loadExpectedResult("sharedScanTwoTables.txt"), sqlConverter.toCCode(List.of("SELECT * FROM uwa", "SELECT * FROM sea")));
+    }
+
     private static Stream<Arguments> provideQueryTestData() {
         return Stream.of(
                 Arguments.of("SELECT * FROM uwa", "fullScan.txt"),
@@ -93,10 +255,115 @@ public class TestSQLConverter {
                 Arguments.of("SELECT * FROM uwa WHERE windSpeed != 200", "selectionSingleNotEqual.txt"),
                 Arguments.of("SELECT * FROM uwa WHERE windSpeed <> 200", "selectionSingleNotEqual.txt"),
                 Arguments.of("SELECT * FROM uwa WHERE windSpeed > 200 AND airPres >= 100 AND airPres < 500", "selectionMultipleAnd.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE airPres > 500 AND airPres < 100", "selectionEmptyRange.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE windSpeed != 200 AND windSpeed >= 200 AND windSpeed != 900", "selectionMergedNotEqual.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE airTemp > 200 AND airTemp >= 300 AND airTemp <= 300", "indexScanMerged.txt"),
                 Arguments.of("SELECT id, airTemp FROM uwa WHERE id >= 1000000 AND airTemp < 500", "select1.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE id = 86400", "pointLookup.txt"),
+                Arguments.of("SELECT id, windSpeed FROM uwa WHERE id = 86400 AND windSpeed > 200 AND airTemp >= 20", "pointLookupSelection.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE id IN (1, 9, 5, 6) AND windSpeed > 3", "keyRanges.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE (id = 1 OR id = 9 OR id >= 5 AND id <= 6) AND windSpeed > 3", "keyRanges.txt"),
+                Arguments.of("SELECT id, windSpeed FROM uwa WHERE (windSpeed < 2 OR windSpeed >= 10 AND windSpeed <= 12 OR windSpeed = 20) AND id NOT IN (3, 4)", "selectionRanges.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE id IN (1, 5, 9) AND id > 6", "pointLookupRanges.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE id IN (1, 5) AND id > 6", "selectionEmptyRange.txt"),
+                Arguments.of("SELECT * FROM uwa LIMIT 0", "selectionEmptyRange.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE id >= 1000 AND windSpeed > 3 ORDER BY id DESC LIMIT 10", "reverseScanLimit.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE id >= 1000 AND windSpeed > 3 ORDER BY id ASC LIMIT 10", "limit.txt"),
+                Arguments.of("SELECT MIN(id), MAX(id), COUNT(*) FROM uwa", "keyAggregate.txt"),
+                Arguments.of("SELECT MAX(id), MIN(id) FROM uwa WHERE id >= 100 AND id < 5000", "keyAggregateRange.txt"),
                 Arguments.of("SELECT floor(id / 86400), min(airTemp), max(airTemp), avg(airTemp) FROM uwa GROUP BY floor(id / 86400) order by floor(id / 86400)", "groupBy1.txt"),
                 Arguments.of("SELECT floor(id / 86400) as \"Day\", avg(airTemp) as \"AvgTemp\", max(windspeed) as \"MaxWind\" FROM uwa GROUP BY \"Day\" HAVING max(windspeed) > 250", "having1.txt"),
-                Arguments.of("SELECT min(airTemp) FROM uwa", "min.txt")
+                Arguments.of("SELECT min(airTemp) FROM uwa", "min.txt"),
+                Arguments.of("SELECT id / 60, MAX(airTemp) FROM uwa WHERE windSpeed > 10 AND airPres < 900 GROUP BY id / 60", "projectionPushdown.txt"),
+                Arguments.of("SELECT time_bucket(id, 3600), COUNT(*), MAX(windSpeed) FROM uwa GROUP BY time_bucket(id, 3600)", "timeBucket.txt"),
+                Arguments.of("SELECT sliding_bucket(id, 3600, 900), COUNT(*) FROM uwa GROUP BY sliding_bucket(id, 3600, 900)", "slidingWindowOperator.txt"),
+                Arguments.of("SELECT airTemp, COUNT(*) FROM uwa GROUP BY airTemp", "hashGroupByNoStatistics.txt"),
+                Arguments.of("SELECT id, airTemp FROM uwa WHERE airTemp - windSpeed > 5 AND FLOOR(id / 86400) = 19500", "expressionSelection.txt"),
+                Arguments.of("SELECT id FROM uwa WHERE 100 < airTemp / 10 + 3", "expressionDataRange.txt"),
+                Arguments.of("SELECT id FROM uwa WHERE id - 5 > -1", "expressionUnsignedKey.txt"),
+                Arguments.of("SELECT floor(id / 86400), max(windspeed) FROM uwa GROUP BY floor(id / 86400) HAVING floor(id / 86400) = 19500 AND max(windspeed) > 250", "havingGroupKey.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE airTemp > 500 AND airTemp < 100", "selectionEmptyRange.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE id < 0", "selectionEmptyRange.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE windSpeed >= -2147483648 AND id >= 0", "fullScan.txt"),
+                Arguments.of("SELECT id / 60, COUNT(*) FROM uwa GROUP BY id / 60 HAVING COUNT(*) < 1", "selectionEmptyRange.txt"),
+                Arguments.of("SELECT id / 60, MAX(airTemp) FROM uwa WHERE airTemp >= 100 GROUP BY id / 60 HAVING MIN(airTemp) >= 100", "havingAlwaysTrue.txt"),
+                Arguments.of("SELECT floor(id / 86400) as \"Day\", avg(airTemp) as \"AvgTemp\", max(windspeed) as \"MaxWind\" FROM uwa GROUP BY \"Day\" HAVING 250 < max(windspeed)", "having1.txt")
+        );
+    }
+
+    private static Stream<Arguments> provideFusedQueryTestData() {
+        return Stream.of(
+                Arguments.of("SELECT * FROM uwa", "fusedFullScan.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE windSpeed > 200 AND airPres >= 100 AND airPres < 500", "fusedSelectionMultipleAnd.txt"),
+                Arguments.of("SELECT id, airTemp FROM uwa WHERE id >= 1000000 AND airTemp < 500", "fusedSelect1.txt"),
+                Arguments.of("SELECT floor(id / 86400), min(airTemp), max(airTemp), avg(airTemp) FROM uwa GROUP BY floor(id / 86400) order by floor(id / 86400)", "fusedGroupBy1.txt"),
+                Arguments.of("SELECT floor(id / 86400) as \"Day\", avg(airTemp) as \"AvgTemp\", max(windspeed) as \"MaxWind\" FROM uwa GROUP BY \"Day\" HAVING max(windspeed) > 250", "fusedHaving1.txt"),
+                Arguments.of("SELECT min(airTemp) FROM uwa", "fusedMin.txt"),
+                Arguments.of("SELECT COUNT(*) FROM uwa WHERE airTemp < 0 OR airTemp > 400", "fusedDataRanges.txt"),
+                Arguments.of("SELECT id / 10, MAX(airTemp) FROM uwa WHERE airTemp IN (1, 5, 7) GROUP BY id / 10", "fusedGroupedDataRanges.txt"),
+                Arguments.of("SELECT floor(id / 86400), max(windSpeed) FROM uwa GROUP BY floor(id / 86400) HAVING max(windSpeed) > 250 ORDER BY floor(id / 86400) LIMIT 4", "fusedHavingLimit.txt"),
+                Arguments.of("SELECT id / 60 / 60 + 0, count(*) FROM uwa GROUP BY id / 60 / 60 + 0", "fusedFoldedDivision.txt"),
+                Arguments.of("SELECT time_bucket(id, 3600), MIN(airTemp), AVG(windSpeed) FROM uwa WHERE id >= 86400 GROUP BY time_bucket(id, 3600)", "fusedTimeBucket.txt"),
+                Arguments.of("SELECT sliding_bucket(id, 3600, 900), MAX(airTemp), AVG(windSpeed) FROM uwa GROUP BY sliding_bucket(id, 3600, 900) HAVING MAX(airTemp) > 300", "fusedSlidingWindow.txt"),
+                Arguments.of("SELECT id, airTemp FROM uwa WHERE airTemp - windSpeed > 5 AND FLOOR(id / 86400) = 19500", "fusedExpressionSelection.txt"),
+                Arguments.of("SELECT id FROM uwa WHERE id * 2 > 100 AND ABS(airTemp) > 5", "fusedExpressionOverflow.txt"),
+                Arguments.of("SELECT floor(id / 86400), max(windspeed) FROM uwa GROUP BY floor(id / 86400) HAVING floor(id / 86400) >= 19500", "fusedHavingGroupKey.txt")
+        );
+    }
+
+    private static Stream<Arguments> provideContinuousQueryTestData() {
+        return Stream.of(
+                Arguments.of("SELECT id / 60, COUNT(*), AVG(airTemp) FROM uwa WHERE airTemp > 10 GROUP BY id / 60", "continuousWindow.txt"),
+                Arguments.of("SELECT COUNT(*), MAX(airPres) FROM uwa WHERE id >= 1000 AND windSpeed = 2", "continuousAggregate.txt"),
+                Arguments.of("SELECT * FROM uwa WHERE airTemp > 900", "continuousSelection.txt"),
+                Arguments.of("SELECT id / 60, COUNT(*) FROM uwa GROUP BY id / 60 LIMIT 2", "continuousLimit.txt"),
+                Arguments.of("SELECT sliding_bucket(id, 600, 300), COUNT(*), MIN(airTemp) FROM uwa WHERE airTemp > 0 GROUP BY sliding_bucket(id, 600, 300)", "continuousSlidingWindow.txt"),
+                Arguments.of("SELECT id, airTemp FROM uwa WHERE airTemp - windSpeed > 5", "continuousExpressionSelection.txt")
+        );
+    }
+
+    private static Stream<Arguments> provideOutputModeTestData() {
+        return Stream.of(
+                Arguments.of(SQLConverter.CodeGenMode.OPERATOR, SQLConverter.OutputMode.CALLBACK, "SELECT id, airTemp FROM uwa WHERE airTemp > 200", "outputCallback.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.FUSED, SQLConverter.OutputMode.RING_BUFFER, "SELECT id / 60, COUNT(*), AVG(airTemp) FROM uwa GROUP BY id / 60", "fusedOutputRingBuffer.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.FUSED, SQLConverter.OutputMode.DELTA, "SELECT id, airTemp, airPres FROM uwa WHERE id >= 100", "fusedOutputDelta.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.CONTINUOUS, SQLConverter.OutputMode.CALLBACK, "SELECT id, windSpeed FROM uwa WHERE windSpeed > 250", "continuousOutputCallback.txt")
+        );
+    }
+
+    /**
+     * Queries on the tables of the statistics file, with the code generation and allocation modes to convert them with
+     */
+    private static Stream<Arguments> provideStatisticsQueryTestData() {
+        return Stream.of(
+                // Groups on a column other than the key are not consecutive records, so they are collected in a hash table
+                Arguments.of(SQLConverter.CodeGenMode.OPERATOR, SQLConverter.AllocationMode.HEAP, "SELECT state, COUNT(*), AVG(reading) FROM sensor GROUP BY state", "hashGroupBy.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.OPERATOR, SQLConverter.AllocationMode.STATIC, "SELECT state, COUNT(*), AVG(reading) FROM sensor GROUP BY state", "staticHashGroupBy.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.FUSED, SQLConverter.AllocationMode.HEAP, "SELECT state, MAX(reading) FROM sensor GROUP BY state HAVING MAX(reading) > 10", "fusedHashGroupBy.txt"),
+                // Rounding an integer division by a constant without converting to double
+                Arguments.of(SQLConverter.CodeGenMode.FUSED, SQLConverter.AllocationMode.HEAP, "SELECT round(reading / 10.0), count(*) FROM sensor GROUP BY round(reading / 10.0)", "fusedRoundDiv.txt"),
+                // Expressions that increase with the key group runs of records, and the others are grouped in a hash table within each run
+                Arguments.of(SQLConverter.CodeGenMode.OPERATOR, SQLConverter.AllocationMode.HEAP, "SELECT id / 3600, id / 60, COUNT(*) FROM sensor GROUP BY id / 3600, id / 60", "compositeGroupByKey.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.OPERATOR, SQLConverter.AllocationMode.HEAP, "SELECT floor(id / 3600), state, COUNT(*), MAX(reading) FROM sensor GROUP BY floor(id / 3600), state ORDER BY floor(id / 3600)", "compositeGroupByRuns.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.OPERATOR, SQLConverter.AllocationMode.HEAP, "SELECT state, reading / 10, COUNT(*) FROM sensor GROUP BY state, reading / 10", "compositeGroupByHash.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.FUSED, SQLConverter.AllocationMode.HEAP, "SELECT id / 3600, id / 60, COUNT(*) FROM sensor GROUP BY id / 3600, id / 60", "fusedCompositeGroupByKey.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.FUSED, SQLConverter.AllocationMode.HEAP, "SELECT floor(id / 3600), state, COUNT(*), MAX(reading) FROM sensor GROUP BY floor(id / 3600), state ORDER BY floor(id / 3600)", "fusedCompositeGroupByRuns.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.FUSED, SQLConverter.AllocationMode.HEAP, "SELECT state, reading / 10, COUNT(*) FROM sensor GROUP BY state, reading / 10", "fusedCompositeGroupByHash.txt"),
+                // HAVING on a GROUP BY expression selects records before they are grouped, and only the aggregate comparison is left after
+                Arguments.of(SQLConverter.CodeGenMode.OPERATOR, SQLConverter.AllocationMode.HEAP, "SELECT state, COUNT(*) FROM sensor GROUP BY state HAVING state <> 3 AND COUNT(*) > 10", "havingGroupColumn.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.OPERATOR, SQLConverter.AllocationMode.HEAP, "SELECT reading / 100, COUNT(*) FROM sensor GROUP BY reading / 100 HAVING reading / 100 <> 3", "havingGroupExpression.txt")
+        );
+    }
+
+    private static Stream<Arguments> provideStaticQueryTestData() {
+        return Stream.of(
+                Arguments.of(SQLConverter.CodeGenMode.OPERATOR, "SELECT id, airTemp FROM uwa WHERE id >= 1000000 AND airTemp < 500", "staticSelect1.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.OPERATOR, "SELECT floor(id / 86400) as \"Day\", avg(airTemp) as \"AvgTemp\", max(windspeed) as \"MaxWind\" FROM uwa GROUP BY \"Day\" HAVING max(windspeed) > 250", "staticHaving1.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.FUSED, "SELECT id, airTemp FROM uwa WHERE id >= 1000000 AND airTemp < 500", "fusedStaticSelect1.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.OPERATOR, "SELECT id, airTemp FROM uwa WHERE airTemp >= 10 AND id < 5000 ORDER BY id DESC", "staticReverseScan.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.OPERATOR, "SELECT * FROM uwa WHERE id IN (1, 9, 5) AND windSpeed > 3", "staticKeyRanges.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.OPERATOR, "SELECT id, windSpeed FROM uwa WHERE windSpeed > 3 AND windSpeed < 30", "staticSelectRange.txt"),
+                Arguments.of(SQLConverter.CodeGenMode.OPERATOR, "SELECT id, airTemp FROM uwa WHERE airTemp - windSpeed > 100", "staticExpressionSelection.txt")
         );
     }
 